@@ -0,0 +1,185 @@
+package ru.relex.c14n2.benchmark;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import ru.relex.c14n2.CanonicalizationProfile;
+import ru.relex.c14n2.CanonicalizerSink;
+import ru.relex.c14n2.DOMCanonicalizer;
+import ru.relex.c14n2.Parameters;
+import ru.relex.c14n2.QNameAwareParameter;
+
+/**
+ * Benchmark of the DOM canonicalization.
+ *
+ * The inputs are the documents of the tests, the scaled variants repeat the
+ * child nodes of the document element. The modes are the parameters of the
+ * tests, "include" and "exclude" canonicalize the even and the odd child
+ * elements of the document element with the default parameters. The
+ * allocation rate is measured by the gc profiler:
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar DOMCanonicalizerBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DOMCanonicalizerBenchmark {
+
+  @Param({ "inC14N3", "inNsContent", "inNsXml", "inWsse" })
+  public String input;
+
+  @Param({ "1", "100" })
+  public int scale;
+
+  @Param({ "c14nDefault", "c14nComment", "c14nTrim", "c14nPrefix",
+      "c14nQname", "c14nQnameElem", "c14nQnameXpathElem",
+      "c14nPrefixQnameXpathElem", "include", "exclude" })
+  public String mode;
+
+  private Document doc;
+  private List<Node> includeList;
+  private List<Node> excludeList;
+  private CanonicalizationProfile profile;
+
+  /**
+   * Parses and scales the input, compiles the parameters of the mode.
+   *
+   * @throws Exception
+   */
+  @Setup
+  public void setUp() throws Exception {
+    URL url = DOMCanonicalizerBenchmark.class.getResource("/" + input
+        + ".xml");
+    if (url == null) {
+      throw new IllegalArgumentException("Unknown input: " + input);
+    }
+    InputStream in = url.openStream();
+    try {
+      doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(in, url.toExternalForm());
+    } finally {
+      in.close();
+    }
+
+    Element root = doc.getDocumentElement();
+    List<Node> children = new ArrayList<Node>();
+    for (Node child = root.getFirstChild(); child != null; child = child
+        .getNextSibling()) {
+      children.add(child);
+    }
+    for (int i = 1; i < scale; i++) {
+      for (Node child : children) {
+        root.appendChild(child.cloneNode(true));
+      }
+    }
+
+    if ("include".equals(mode) || "exclude".equals(mode)) {
+      List<Node> even = new ArrayList<Node>();
+      List<Node> odd = new ArrayList<Node>();
+      for (Node child = root.getFirstChild(); child != null; child = child
+          .getNextSibling()) {
+        if (child.getNodeType() == Node.ELEMENT_NODE) {
+          (even.size() == odd.size() ? even : odd).add(child);
+        }
+      }
+      if ("include".equals(mode)) {
+        includeList = even;
+      } else {
+        excludeList = odd;
+      }
+      profile = new CanonicalizationProfile(getParams("c14nDefault"));
+    } else {
+      profile = new CanonicalizationProfile(getParams(mode));
+    }
+  }
+
+  /**
+   * Canonicalizes the document into a sink which consumes the output.
+   *
+   * @param blackhole
+   *          consumer of the output
+   *
+   * @throws Exception
+   */
+  @Benchmark
+  public void canonicalize(final Blackhole blackhole) throws Exception {
+    DOMCanonicalizer.canonicalize(doc, includeList, excludeList, profile,
+        new CanonicalizerSink() {
+          @Override
+          public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+          }
+
+          @Override
+          public void flush() {
+          }
+        });
+  }
+
+  /**
+   * Returns the parameters of a mode, the same as the parameters of the
+   * tests.
+   *
+   * @param mode
+   *          name of the parameters
+   *
+   * @return Returns the parameters
+   */
+  private static Parameters getParams(String mode) {
+    Parameters params = new Parameters();
+    if ("c14nComment".equals(mode)) {
+      params.setIgnoreComments(false);
+    } else if ("c14nTrim".equals(mode)) {
+      params.setTrimTextNodes(true);
+    } else if ("c14nPrefix".equals(mode)) {
+      params.setPrefixRewrite(Parameters.SEQUENTIAL);
+    } else if ("c14nQname".equals(mode)) {
+      params.getQnameAwareAttributes().add(
+          new QNameAwareParameter("type",
+              "http://www.w3.org/2001/XMLSchema-instance"));
+    } else if ("c14nQnameElem".equals(mode)) {
+      params.getQnameAwareElements().add(
+          new QNameAwareParameter("bar", "http://a"));
+    } else if ("c14nQnameXpathElem".equals(mode)
+        || "c14nPrefixQnameXpathElem".equals(mode)) {
+      if ("c14nPrefixQnameXpathElem".equals(mode)) {
+        params.setPrefixRewrite(Parameters.SEQUENTIAL);
+      }
+      params.getQnameAwareElements().add(
+          new QNameAwareParameter("bar", "http://a"));
+      params.getQnameAwareXPathElements().add(
+          new QNameAwareParameter("IncludedXPath",
+              "http://www.w3.org/2010/xmldsig2#"));
+    } else if (!"c14nDefault".equals(mode)) {
+      throw new IllegalArgumentException("Unknown mode: " + mode);
+    }
+    return params;
+  }
+}
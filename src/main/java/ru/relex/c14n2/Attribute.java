@@ -8,6 +8,7 @@ class Attribute {
   private String newPrefix;
   private String localName;
   private String value;
+  private String uri;
 
   /**
    * Returns the prefix of the qualified name of this attribute.
@@ -61,4 +62,18 @@ class Attribute {
   public void setValue(String value) {
     this.value = value;
   }
+
+  /**
+   * Returns the namespace URI of this attribute which is used for the ordering
+   * of attributes.
+   * 
+   * @return Returns the URI
+   */
+  public String getUri() {
+    return uri;
+  }
+
+  public void setUri(String uri) {
+    this.uri = uri;
+  }
 }
\ No newline at end of file
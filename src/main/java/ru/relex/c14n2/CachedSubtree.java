@@ -0,0 +1,102 @@
+package ru.relex.c14n2;
+
+import org.w3c.dom.Node;
+
+/**
+ * The canonical form of an element subtree in a namespace context.
+ */
+class CachedSubtree {
+  private final Node node;
+  private final long context;
+  private final long start;
+  private final int sequentialCount;
+  private byte[] bytes = null;
+  private String[] sequentialUris = null;
+
+  /**
+   * Constructor of the subtree which output is being recorded.
+   *
+   * @param node
+   *          element
+   * @param context
+   *          key of the namespace context of the element
+   * @param start
+   *          position of the output of the element
+   * @param sequentialCount
+   *          number of the sequential prefixes assigned before the element
+   */
+  public CachedSubtree(Node node, long context, long start,
+      int sequentialCount) {
+    this.node = node;
+    this.context = context;
+    this.start = start;
+    this.sequentialCount = sequentialCount;
+  }
+
+  /**
+   * Returns the element.
+   *
+   * @return Returns the element
+   */
+  public Node getNode() {
+    return node;
+  }
+
+  /**
+   * Returns the key of the namespace context of the element.
+   *
+   * @return Returns the key
+   */
+  public long getContext() {
+    return context;
+  }
+
+  /**
+   * Returns the position of the output of the element.
+   *
+   * @return Returns the position
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * Returns the number of the sequential prefixes assigned before the element.
+   *
+   * @return Returns the number of prefixes
+   */
+  public int getSequentialCount() {
+    return sequentialCount;
+  }
+
+  /**
+   * Returns the canonical form of the subtree.
+   *
+   * @return Returns the canonical form in UTF-8
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the URIs of the sequential prefixes assigned by the subtree.
+   *
+   * @return Returns the URIs in the order of the prefixes
+   */
+  public String[] getSequentialUris() {
+    return sequentialUris;
+  }
+
+  /**
+   * Completes the recorded subtree.
+   *
+   * @param bytes
+   *          canonical form of the subtree
+   * @param sequentialUris
+   *          URIs of the sequential prefixes assigned by the subtree
+   */
+  public void complete(byte[] bytes, String[] sequentialUris) {
+    this.bytes = bytes;
+    this.sequentialUris = sequentialUris;
+  }
+}
@@ -0,0 +1,124 @@
+package ru.relex.c14n2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The input stream of the canonical form which is produced on demand.
+ *
+ * The canonicalization advances only until the output block of the writer is
+ * filled, so the buffered data is limited by the size of the block and the
+ * size of the largest node. A reader which closes the stream early stops the
+ * canonicalization.
+ */
+class CanonicalInputStream extends InputStream implements CanonicalizerSink {
+  private DOMCanonicalizer source;
+  private byte[] buffer = new byte[CanonicalWriter.BUFFER_SIZE];
+  private int pos = 0;
+  private int count = 0;
+  private boolean bEnd = false;
+  private boolean bClosed = false;
+
+  /**
+   * Sets the canonicalizer writing to the stream.
+   *
+   * @param source
+   *          canonicalizer
+   */
+  void setSource(DOMCanonicalizer source) {
+    this.source = source;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (count + len > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len));
+    }
+    System.arraycopy(b, off, buffer, count, len);
+    count += len;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void flush() throws IOException {
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return buffer[pos++] & 0xFF;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    int n = Math.min(len, count - pos);
+    System.arraycopy(buffer, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int available() throws IOException {
+    return count - pos;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() throws IOException {
+    bClosed = true;
+    source = null;
+    buffer = null;
+    pos = 0;
+    count = 0;
+  }
+
+  /**
+   * Advances the canonicalization until the next block is written.
+   *
+   * @return Returns true if there are buffered bytes, false at the end of the
+   *         canonical form
+   *
+   * @throws IOException
+   */
+  private boolean fill() throws IOException {
+    if (bClosed) {
+      throw new IOException("Stream closed");
+    }
+    if (pos == count) {
+      pos = 0;
+      count = 0;
+      while (count == 0 && !bEnd) {
+        bEnd = !source.pull();
+      }
+    }
+    return pos < count;
+  }
+}
@@ -0,0 +1,421 @@
+package ru.relex.c14n2;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * UTF-8 output of the canonicalizer. The canonical form is encoded into a
+ * fixed-size buffer which is passed to the sink every time it is filled.
+ *
+ * Text is escaped in the same pass: every ASCII character is looked up in the
+ * table of the context, and the runs of characters which need no escaping are
+ * copied to the buffer in a tight loop.
+ */
+class CanonicalWriter {
+  static final int BUFFER_SIZE = 8192;
+
+  private static final String[] ESCAPES = { null, "&amp;", "&lt;", "&gt;",
+      "&quot;", "&#x9;", "&#xA;", "&#xD;" };
+  // "#x" followed by one of the characters of the context is escaped as a
+  // character reference
+  private static final byte REF = -1;
+
+  private static final byte[] NO_ESCAPING = new byte[0x80];
+  private static final byte[] TEXT_ESCAPING = createEscaping("&<>\r", false);
+  private static final byte[] ATTRIBUTE_ESCAPING = createEscaping(
+      "&<\"\t\n\r", true);
+  private static final byte[] CDATA_ESCAPING = createEscaping("&<>", true);
+
+  private static final String ATTRIBUTE_REFS = "9AD";
+  private static final String CDATA_REFS = "D";
+
+  private final CanonicalizerSink sink;
+  private final byte[] buffer;
+  private int pos = 0;
+  private long byteCount = 0;
+
+  // copy of the output since the first started record
+  private byte[] record = null;
+  private int recordSize = 0;
+  private long recordStart = 0;
+  private int recordCount = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param sink
+   *          receiver of the canonical form
+   */
+  public CanonicalWriter(CanonicalizerSink sink) {
+    this(sink, BUFFER_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param sink
+   *          receiver of the canonical form
+   * @param bufferSize
+   *          size of the output block
+   */
+  public CanonicalWriter(CanonicalizerSink sink, int bufferSize) {
+    if (sink == null) {
+      throw new NullPointerException();
+    }
+    this.sink = sink;
+    this.buffer = new byte[Math.max(bufferSize, 4)];
+  }
+
+  /**
+   * Writes a text.
+   *
+   * @param text
+   *          text
+   *
+   * @throws IOException
+   */
+  public void write(CharSequence text) throws IOException {
+    write(text, 0, text.length(), NO_ESCAPING, null);
+  }
+
+  /**
+   * Writes the content of a text node. The characters "&amp;", "&lt;", "&gt;"
+   * and carriage return are escaped.
+   *
+   * @param text
+   *          text
+   * @param start
+   *          index of the first character
+   * @param end
+   *          index after the last character
+   *
+   * @throws IOException
+   */
+  public void writeText(CharSequence text, int start, int end)
+      throws IOException {
+    write(text, start, end, TEXT_ESCAPING, null);
+  }
+
+  /**
+   * Writes an attribute value. The characters "&amp;", "&lt;", quotation mark,
+   * tab, line feed and carriage return are escaped, as well as the texts "#x9",
+   * "#xA" and "#xD".
+   *
+   * @param value
+   *          attribute value
+   *
+   * @throws IOException
+   */
+  public void writeAttributeValue(CharSequence value) throws IOException {
+    write(value, 0, value.length(), ATTRIBUTE_ESCAPING, ATTRIBUTE_REFS);
+  }
+
+  /**
+   * Writes the content of a CDATA section. The characters "&amp;", "&lt;",
+   * "&gt;" and the text "#xD" are escaped.
+   *
+   * @param data
+   *          content of the section
+   *
+   * @throws IOException
+   */
+  public void writeCData(CharSequence data) throws IOException {
+    write(data, 0, data.length(), CDATA_ESCAPING, CDATA_REFS);
+  }
+
+  /**
+   * Writes a character.
+   *
+   * @param c
+   *          character
+   *
+   * @throws IOException
+   */
+  public void write(char c) throws IOException {
+    if (c < 0x80) {
+      if (pos == buffer.length) {
+        flushBuffer();
+      }
+      buffer[pos++] = (byte) c;
+    } else {
+      writeCodePoint(c);
+    }
+  }
+
+  /**
+   * Writes a part of the canonical form which is already encoded. A small part
+   * is copied to the output block.
+   *
+   * @param b
+   *          UTF-8 bytes, complete sequences only
+   * @param off
+   *          start offset
+   * @param len
+   *          number of bytes
+   *
+   * @throws IOException
+   */
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len <= buffer.length - pos) {
+      System.arraycopy(b, off, buffer, pos, len);
+      pos += len;
+      return;
+    }
+    flushBuffer();
+    sink.write(b, off, len);
+    addRecord(b, off, len);
+    byteCount += len;
+  }
+
+  /**
+   * Starts recording of the output. Records can be nested, the output is kept
+   * until the last record ends.
+   *
+   * @return Returns the position of the output to pass to
+   *         {@link #endRecord(long)}
+   */
+  public long startRecord() {
+    if (recordCount++ == 0) {
+      record = new byte[buffer.length];
+      recordSize = 0;
+      recordStart = byteCount;
+    }
+    return getByteCount();
+  }
+
+  /**
+   * Ends recording of the output.
+   *
+   * @param start
+   *          position returned by {@link #startRecord()}
+   *
+   * @return Returns the output written since the record started
+   */
+  public byte[] endRecord(long start) {
+    byte[] b = new byte[(int) (getByteCount() - start)];
+    int recorded = 0;
+    if (start < byteCount) {
+      recorded = (int) (byteCount - start);
+      System.arraycopy(record, (int) (start - recordStart), b, 0, recorded);
+    }
+    System.arraycopy(buffer, pos - (b.length - recorded), b, recorded,
+        b.length - recorded);
+    if (--recordCount == 0) {
+      record = null;
+    }
+    return b;
+  }
+
+  /**
+   * Returns the number of written bytes.
+   *
+   * @return Returns the number of bytes
+   */
+  public long getByteCount() {
+    return byteCount + pos;
+  }
+
+  /**
+   * Passes the buffered output to the sink and completes it.
+   *
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    flushBuffer();
+    sink.flush();
+  }
+
+  /**
+   * Writes a text escaped by the table.
+   *
+   * @param text
+   *          text
+   * @param start
+   *          index of the first character
+   * @param end
+   *          index after the last character
+   * @param escaping
+   *          escaping table of ASCII characters
+   * @param refs
+   *          characters which make a character reference after "#x", or null
+   *
+   * @throws IOException
+   */
+  private void write(CharSequence text, int start, int end, byte[] escaping,
+      String refs) throws IOException {
+    int i = start;
+    while (i < end) {
+      // the run of characters which need no escaping
+      int limit = Math.min(end, i + buffer.length - pos);
+      while (i < limit) {
+        char c = text.charAt(i);
+        if (c >= 0x80 || escaping[c] != 0) {
+          break;
+        }
+        buffer[pos++] = (byte) c;
+        i++;
+      }
+      if (i == end) {
+        break;
+      }
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        byte code = escaping[c];
+        if (code == 0) {
+          // the buffer is full
+          flushBuffer();
+        } else if (code != REF) {
+          writeAscii(ESCAPES[code]);
+          i++;
+        } else if (i + 2 < end && text.charAt(i + 1) == 'x'
+            && refs.indexOf(text.charAt(i + 2)) > -1) {
+          write('&');
+          writeAscii("#x");
+          write(text.charAt(i + 2));
+          write(';');
+          i += 3;
+        } else {
+          write(c);
+          i++;
+        }
+      } else if (Character.isHighSurrogate(c) && i + 1 < end
+          && Character.isLowSurrogate(text.charAt(i + 1))) {
+        writeCodePoint(Character.toCodePoint(c, text.charAt(i + 1)));
+        i += 2;
+      } else {
+        writeCodePoint(c);
+        i++;
+      }
+    }
+  }
+
+  /**
+   * Writes an ASCII text.
+   *
+   * @param text
+   *          text
+   *
+   * @throws IOException
+   */
+  private void writeAscii(String text) throws IOException {
+    for (int i = 0; i < text.length(); i++) {
+      if (pos == buffer.length) {
+        flushBuffer();
+      }
+      buffer[pos++] = (byte) text.charAt(i);
+    }
+  }
+
+  /**
+   * Creates the escaping table of a context.
+   *
+   * @param chars
+   *          escaped characters
+   * @param bRefs
+   *          true if "#x" can make a character reference
+   *
+   * @return Returns the table
+   */
+  private static byte[] createEscaping(String chars, boolean bRefs) {
+    byte[] escaping = new byte[0x80];
+    for (int i = 0; i < chars.length(); i++) {
+      char c = chars.charAt(i);
+      switch (c) {
+      case '&':
+        escaping[c] = 1;
+        break;
+      case '<':
+        escaping[c] = 2;
+        break;
+      case '>':
+        escaping[c] = 3;
+        break;
+      case '"':
+        escaping[c] = 4;
+        break;
+      case '\t':
+        escaping[c] = 5;
+        break;
+      case '\n':
+        escaping[c] = 6;
+        break;
+      case '\r':
+        escaping[c] = 7;
+        break;
+      }
+    }
+    if (bRefs) {
+      escaping['#'] = REF;
+    }
+    return escaping;
+  }
+
+  /**
+   * Writes a character as a UTF-8 sequence. The sequence is never split
+   * between two output blocks.
+   *
+   * @param cp
+   *          code point
+   *
+   * @throws IOException
+   */
+  private void writeCodePoint(int cp) throws IOException {
+    if (buffer.length - pos < 4) {
+      flushBuffer();
+    }
+    if (cp < 0x80) {
+      buffer[pos++] = (byte) cp;
+    } else if (cp < 0x800) {
+      buffer[pos++] = (byte) (0xC0 | (cp >> 6));
+      buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+    } else if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) {
+      // unpaired surrogate, replaced as String.getBytes("UTF-8") does
+      buffer[pos++] = '?';
+    } else if (cp < 0x10000) {
+      buffer[pos++] = (byte) (0xE0 | (cp >> 12));
+      buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+      buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+    } else {
+      buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+      buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+      buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+      buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+    }
+  }
+
+  /**
+   * Copies the output passed to the sink to the record.
+   *
+   * @param b
+   *          data
+   * @param off
+   *          start offset
+   * @param len
+   *          number of bytes
+   */
+  private void addRecord(byte[] b, int off, int len) {
+    if (record == null) {
+      return;
+    }
+    if (recordSize + len > record.length) {
+      record = Arrays.copyOf(record, Math.max(record.length * 2, recordSize
+          + len));
+    }
+    System.arraycopy(b, off, record, recordSize, len);
+    recordSize += len;
+  }
+
+  /**
+   * Passes the buffered output to the sink.
+   *
+   * @throws IOException
+   */
+  private void flushBuffer() throws IOException {
+    if (pos > 0) {
+      sink.write(buffer, 0, pos);
+      addRecord(buffer, 0, pos);
+      byteCount += pos;
+      pos = 0;
+    }
+  }
+}
@@ -0,0 +1,306 @@
+package ru.relex.c14n2;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+
+/**
+ * The cache of the canonical forms of the element subtrees of a long-lived
+ * document.
+ *
+ * The canonical form of an element is cached with the namespace context it
+ * was produced in, and is reused while the subtree and the context are not
+ * changed. When a node is changed, the cached forms of the node and of all its
+ * ancestors are removed, so the next canonicalization processes only the
+ * changed path and copies the other subtrees. The changes are tracked by DOM
+ * mutation events if the document supports them, otherwise they must be
+ * reported by {@link #invalidate(Node)}.
+ *
+ * Only the elements from depth 2 (the child elements of the document element)
+ * to the maximum depth are cached, every cached level keeps a copy of the
+ * canonical form of the levels below it. The cache is not thread-safe, the
+ * same as the document.
+ */
+public final class CanonicalizationCache {
+  /**
+   * The default maximum depth of the cached elements.
+   */
+  public static final int DEFAULT_MAX_DEPTH = 4;
+
+  private static final String[] MUTATION_EVENTS = { "DOMNodeInserted",
+      "DOMNodeRemoved", "DOMAttrModified", "DOMCharacterDataModified" };
+
+  private final Document doc;
+  private final CanonicalizationProfile profile;
+  private final int maxDepth;
+  private final Set<Node> nodes;
+  private final Map<Node, CachedSubtree> entries = new IdentityHashMap<Node, CachedSubtree>();
+  // keys of the namespace contexts and of the sequential prefixes, the key of
+  // a context is looked up by the key of its previous part
+  private final Map<String, Integer> contextKeys = new HashMap<String, Integer>();
+  private final Map<String, Integer> sequentialKeys = new HashMap<String, Integer>();
+  private final EventListener listener;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   */
+  public CanonicalizationCache(Document doc, CanonicalizationProfile profile) {
+    this(doc, profile, DEFAULT_MAX_DEPTH);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   * @param maxDepth
+   *          maximum depth of the cached elements in the DOM tree
+   */
+  public CanonicalizationCache(Document doc, CanonicalizationProfile profile,
+      int maxDepth) {
+    if (doc == null || profile == null) {
+      throw new NullPointerException();
+    }
+    this.doc = doc;
+    this.profile = profile;
+    this.maxDepth = maxDepth;
+    this.nodes = null;
+    if (doc instanceof EventTarget) {
+      listener = new EventListener() {
+        public void handleEvent(Event evt) {
+          invalidate((Node) evt.getTarget());
+        }
+      };
+      for (String type : MUTATION_EVENTS) {
+        ((EventTarget) doc).addEventListener(type, listener, true);
+      }
+    } else {
+      listener = null;
+    }
+  }
+
+  /**
+   * Constructor of the cache of the specified elements which is used while
+   * the document is not changed. The changes are not tracked.
+   * 
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   * @param nodes
+   *          cached elements
+   */
+  CanonicalizationCache(Document doc, CanonicalizationProfile profile,
+      Set<Node> nodes) {
+    this.doc = doc;
+    this.profile = profile;
+    this.maxDepth = Integer.MAX_VALUE;
+    this.nodes = nodes;
+    listener = null;
+  }
+
+  /**
+   * Returns the document.
+   *
+   * @return Returns the document
+   */
+  public Document getDocument() {
+    return doc;
+  }
+
+  /**
+   * Returns the canonicalization profile.
+   *
+   * @return Returns the profile
+   */
+  public CanonicalizationProfile getProfile() {
+    return profile;
+  }
+
+  /**
+   * Returns the maximum depth of the cached elements.
+   *
+   * @return Returns the depth in the DOM tree
+   */
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * Removes the cached forms of a changed node and of its ancestors.
+   *
+   * @param node
+   *          changed node
+   */
+  public void invalidate(Node node) {
+    while (node != null) {
+      entries.remove(node);
+      node = node instanceof Attr ? ((Attr) node).getOwnerElement() : node
+          .getParentNode();
+    }
+  }
+
+  /**
+   * Removes all cached forms.
+   */
+  public void clear() {
+    entries.clear();
+    contextKeys.clear();
+    sequentialKeys.clear();
+  }
+
+  /**
+   * Stops tracking of the changes of the document and removes all cached
+   * forms.
+   */
+  public void detach() {
+    if (listener != null) {
+      for (String type : MUTATION_EVENTS) {
+        ((EventTarget) doc).removeEventListener(type, listener, true);
+      }
+    }
+    clear();
+  }
+
+  /**
+   * Returns the number of cached elements.
+   *
+   * @return Returns the size
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the number of elements copied from the cache.
+   *
+   * @return Returns the number of hits
+   */
+  public long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of cacheable elements which were processed.
+   *
+   * @return Returns the number of misses
+   */
+  public long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Returns whether the canonical form of an element is cached.
+   *
+   * @param node
+   *          element
+   * @param depth
+   *          depth of the element in the DOM tree
+   *
+   * @return Returns true if the element is cached, false - otherwise
+   */
+  boolean isCached(Node node, int depth) {
+    if (depth < 2 || depth > maxDepth) {
+      return false;
+    }
+    return nodes == null || nodes.contains(node);
+  }
+
+  /**
+   * Returns the cached form of an element.
+   *
+   * @param node
+   *          element
+   * @param context
+   *          key of the namespace context of the element
+   *
+   * @return Returns the cached form, or null if the element or the context is
+   *         changed
+   */
+  CachedSubtree get(Node node, long context) {
+    CachedSubtree cached = entries.get(node);
+    if (cached != null && cached.getContext() == context) {
+      hits++;
+      return cached;
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Returns the key of a namespace context.
+   *
+   * @param previous
+   *          key of the context without the last declaration, 0 for the empty
+   *          context
+   * @param ncp
+   *          last declaration of the context
+   *
+   * @return Returns the key, the same for the same declarations
+   */
+  int getContextKey(int previous, NamespaceContextParams ncp) {
+    return getKey(contextKeys, previous + " " + ncp.getPrefix() + ' '
+        + ncp.getNewPrefix() + ' ' + ncp.isHasOutput() + ' ' + ncp.getUri());
+  }
+
+  /**
+   * Returns the key of the assigned sequential prefixes.
+   *
+   * @param previous
+   *          key of the prefixes without the last one, 0 for no prefixes
+   * @param uri
+   *          URI of the last prefix
+   *
+   * @return Returns the key, the same for the same URIs
+   */
+  int getSequentialKey(int previous, String uri) {
+    return getKey(sequentialKeys, previous + " " + uri);
+  }
+
+  /**
+   * Returns the key of a value, a new key is assigned to a new value.
+   *
+   * @param keys
+   *          keys by values
+   * @param value
+   *          value
+   *
+   * @return Returns the key, greater than 0
+   */
+  private static int getKey(Map<String, Integer> keys, String value) {
+    Integer key = keys.get(value);
+    if (key == null) {
+      key = keys.size() + 1;
+      keys.put(value, key);
+    }
+    return key;
+  }
+
+  /**
+   * Caches the form of an element.
+   *
+   * @param cached
+   *          completed form
+   */
+  void put(CachedSubtree cached) {
+    entries.put(cached.getNode(), cached);
+  }
+}
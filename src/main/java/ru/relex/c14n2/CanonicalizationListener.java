@@ -0,0 +1,20 @@
+package ru.relex.c14n2;
+
+/**
+ * The listener of completed canonicalizations.
+ *
+ * The listener is set in the {@link CanonicalizationProfile} and is called in
+ * the thread which completed the canonicalization, so the listener of a shared
+ * profile must be thread-safe. Without a listener the metrics are not
+ * reported.
+ */
+public interface CanonicalizationListener {
+
+  /**
+   * Called when a document is canonicalized.
+   *
+   * @param metrics
+   *          metrics of the canonicalization
+   */
+  void canonicalized(CanonicalizationMetrics metrics);
+}
@@ -0,0 +1,125 @@
+package ru.relex.c14n2;
+
+/**
+ * The metrics of one canonicalization.
+ *
+ * The counts of elements, attributes, text and namespace declarations include
+ * only the processed nodes. The subtrees copied from a
+ * {@link CanonicalizationCache} are not processed again, they are counted in
+ * the output bytes only.
+ */
+public final class CanonicalizationMetrics {
+  long elementCount;
+  long attributeCount;
+  long textByteCount;
+  long namespaceDeclarationCount;
+  int maxNamespaceDepth;
+  long xpathCacheHitCount;
+  long xpathCacheMissCount;
+  long outputByteCount;
+  long elapsedNanos;
+
+  /**
+   * Returns the number of processed elements.
+   *
+   * @return Returns the number of elements
+   */
+  public long getElementCount() {
+    return elementCount;
+  }
+
+  /**
+   * Returns the number of processed attributes, without namespace
+   * declarations.
+   *
+   * @return Returns the number of attributes
+   */
+  public long getAttributeCount() {
+    return attributeCount;
+  }
+
+  /**
+   * Returns the size of the canonical form of the processed text nodes and
+   * CDATA sections, after trimming and escaping.
+   *
+   * @return Returns the number of UTF-8 bytes
+   */
+  public long getTextByteCount() {
+    return textByteCount;
+  }
+
+  /**
+   * Returns the number of namespace declarations output by the processed
+   * elements.
+   *
+   * @return Returns the number of declarations
+   */
+  public long getNamespaceDeclarationCount() {
+    return namespaceDeclarationCount;
+  }
+
+  /**
+   * Returns the maximum number of namespace declarations in scope, including
+   * the inherited ones which are not output.
+   *
+   * @return Returns the maximum depth of the namespace stack
+   */
+  public int getMaxNamespaceDepth() {
+    return maxNamespaceDepth;
+  }
+
+  /**
+   * Returns the number of the processed XPath elements which expressions are
+   * found in {@link XPathCache}. The expression of an element is looked up
+   * once.
+   *
+   * @return Returns the number of hits
+   */
+  public long getXPathCacheHitCount() {
+    return xpathCacheHitCount;
+  }
+
+  /**
+   * Returns the number of the processed XPath elements which expressions are
+   * not found in {@link XPathCache} and are parsed by the canonicalization.
+   *
+   * @return Returns the number of misses
+   */
+  public long getXPathCacheMissCount() {
+    return xpathCacheMissCount;
+  }
+
+  /**
+   * Returns the size of the canonical form.
+   *
+   * @return Returns the number of UTF-8 bytes
+   */
+  public long getOutputByteCount() {
+    return outputByteCount;
+  }
+
+  /**
+   * Returns the time of the canonicalization.
+   *
+   * @return Returns the elapsed time in nanoseconds
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * Adds the counters of a part of the same canonicalization.
+   *
+   * @param part
+   *          metrics of the part
+   */
+  void add(CanonicalizationMetrics part) {
+    elementCount += part.elementCount;
+    attributeCount += part.attributeCount;
+    textByteCount += part.textByteCount;
+    namespaceDeclarationCount += part.namespaceDeclarationCount;
+    maxNamespaceDepth = Math.max(maxNamespaceDepth, part.maxNamespaceDepth);
+    xpathCacheHitCount += part.xpathCacheHitCount;
+    xpathCacheMissCount += part.xpathCacheMissCount;
+  }
+}
@@ -0,0 +1,187 @@
+package ru.relex.c14n2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The compiled canonicalization parameters.
+ *
+ * The profile is built once from {@link Parameters} and does not change
+ * afterwards, later changes of the parameters do not affect it. It can be
+ * shared between threads and reused for any number of canonicalizations.
+ */
+public final class CanonicalizationProfile {
+  static final CanonicalizationProfile DEFAULT = new CanonicalizationProfile(
+      new Parameters());
+
+  private final boolean ignoreComments;
+  private final boolean trimTextNodes;
+  private final boolean sequential;
+  private final List<QNameAwareParameter> qnameAwareAttributes;
+  private final List<QNameAwareParameter> qnameAwareElements;
+  private final List<QNameAwareParameter> qnameAwareXPathElements;
+  private final QNameIndex qnameAwareAttributeIndex;
+  private final QNameIndex qnameAwareElementIndex;
+  private final QNameIndex qnameAwareXPathElementIndex;
+  private final CanonicalizationListener listener;
+
+  /**
+   * Constructor.
+   *
+   * @param params
+   *          canonicalization parameters
+   */
+  public CanonicalizationProfile(Parameters params) {
+    this(params, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param params
+   *          canonicalization parameters
+   * @param listener
+   *          listener of the completed canonicalizations, or null
+   */
+  public CanonicalizationProfile(Parameters params,
+      CanonicalizationListener listener) {
+    if (params == null) {
+      throw new NullPointerException();
+    }
+    ignoreComments = params.isIgnoreComments();
+    trimTextNodes = params.isTrimTextNodes();
+    sequential = Parameters.SEQUENTIAL.equals(params.getPrefixRewrite());
+    qnameAwareAttributes = copy(params.getQnameAwareAttributes());
+    qnameAwareElements = copy(params.getQnameAwareElements());
+    qnameAwareXPathElements = copy(params.getQnameAwareXPathElements());
+    qnameAwareAttributeIndex = new QNameIndex(qnameAwareAttributes);
+    qnameAwareElementIndex = new QNameIndex(qnameAwareElements);
+    qnameAwareXPathElementIndex = new QNameIndex(qnameAwareXPathElements);
+    this.listener = listener;
+  }
+
+  /**
+   * Returns the profile of the parameters.
+   *
+   * @param params
+   *          canonicalization parameters, or null for the default parameters
+   *
+   * @return Returns the profile
+   */
+  static CanonicalizationProfile valueOf(Parameters params) {
+    return params == null ? DEFAULT : new CanonicalizationProfile(params);
+  }
+
+  /**
+   * Returns whether to ignore comments during canonicalization.
+   *
+   * @return Returns true if comments are ignored, false otherwise.
+   */
+  public boolean isIgnoreComments() {
+    return ignoreComments;
+  }
+
+  /**
+   * Returns whether to trim all text nodes when canonicalizing.
+   *
+   * @return Returns true if whitespaces are removed, false otherwise.
+   */
+  public boolean isTrimTextNodes() {
+    return trimTextNodes;
+  }
+
+  /**
+   * Returns whether prefixes are changed to "n0", "n1", "n2" ...
+   *
+   * @return Returns true in the sequential prefix rewrite mode, false
+   *         otherwise.
+   */
+  public boolean isSequential() {
+    return sequential;
+  }
+
+  /**
+   * Returns the QName-aware attributes.
+   *
+   * @return Returns an unmodifiable list
+   */
+  public List<QNameAwareParameter> getQnameAwareAttributes() {
+    return qnameAwareAttributes;
+  }
+
+  /**
+   * Returns the QName-aware elements.
+   *
+   * @return Returns an unmodifiable list
+   */
+  public List<QNameAwareParameter> getQnameAwareElements() {
+    return qnameAwareElements;
+  }
+
+  /**
+   * Returns the elements which contain XPath expressions.
+   *
+   * @return Returns an unmodifiable list
+   */
+  public List<QNameAwareParameter> getQnameAwareXPathElements() {
+    return qnameAwareXPathElements;
+  }
+
+  /**
+   * Returns the listener of the completed canonicalizations.
+   *
+   * @return Returns the listener, or null
+   */
+  public CanonicalizationListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Returns the index of the QName-aware attributes.
+   *
+   * @return Returns the index
+   */
+  QNameIndex getQnameAwareAttributeIndex() {
+    return qnameAwareAttributeIndex;
+  }
+
+  /**
+   * Returns the index of the QName-aware elements.
+   *
+   * @return Returns the index
+   */
+  QNameIndex getQnameAwareElementIndex() {
+    return qnameAwareElementIndex;
+  }
+
+  /**
+   * Returns the index of the elements which contain XPath expressions.
+   *
+   * @return Returns the index
+   */
+  QNameIndex getQnameAwareXPathElementIndex() {
+    return qnameAwareXPathElementIndex;
+  }
+
+  /**
+   * Copies a list of parameters.
+   *
+   * @param list
+   *          list of parameters, or null
+   *
+   * @return Returns an unmodifiable copy of the list
+   */
+  private static List<QNameAwareParameter> copy(
+      List<QNameAwareParameter> list) {
+    if (list == null || list.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<QNameAwareParameter> copy = new ArrayList<QNameAwareParameter>(
+        list.size());
+    for (QNameAwareParameter en : list) {
+      copy.add(new QNameAwareParameter(en.getName(), en.getNs()));
+    }
+    return Collections.unmodifiableList(copy);
+  }
+}
@@ -0,0 +1,31 @@
+package ru.relex.c14n2;
+
+import java.io.IOException;
+
+/**
+ * The receiver of the canonical form. The canonical form is passed in UTF-8
+ * encoding as it is produced, a block never ends inside a multi-byte sequence.
+ */
+public interface CanonicalizerSink {
+
+  /**
+   * Writes a block of the canonical form.
+   *
+   * @param b
+   *          data
+   * @param off
+   *          start offset in the data
+   * @param len
+   *          number of bytes to write
+   *
+   * @throws IOException
+   */
+  void write(byte[] b, int off, int len) throws IOException;
+
+  /**
+   * Completion of the canonical form.
+   *
+   * @throws IOException
+   */
+  void flush() throws IOException;
+}
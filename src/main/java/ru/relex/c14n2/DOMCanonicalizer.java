@@ -1,23 +1,65 @@
 package ru.relex.c14n2;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.Signature;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.traversal.NodeFilter;
 
 /**
  * C14N2 canonicalization.
  */
 public class DOMCanonicalizer {
+  // the least number of nodes in an element which child nodes are
+  // canonicalized in parallel
+  static final int PARALLEL_THRESHOLD = 8192;
+  // the least number of nodes canonicalized by a task
+  static final int MIN_TASK_WEIGHT = 512;
+  private static final int MAX_TASKS = 64;
 
   private DOMCanonicalizerHandler canonicalizer = null;
+  private CanonicalWriter writer = null;
   private Document doc = null;
   private List<Node> nodes = new ArrayList<Node>();
+  private int[] nodeDepths = null;
+  private int nodeIdx = 0;
   private List<Node> includeList = null;
+  private ExecutorService executor = null;
+  private Map<Node, Integer> weights = null;
+  private ByteArrayOutputStream buffer = null;
+  private NodeTraversal traversal = null;
+  private CanonicalizationCache cache = null;
+  private List<CachedSubtree> records = null;
+  private Set<Node> uncached = null;
+  private NodeFilter filter = null;
 
   /**
    * Constructor.
@@ -28,60 +70,1083 @@ public class DOMCanonicalizer {
    *          inclusion list
    * @param excludeList
    *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * @param sink
+   *          receiver of the canonical form
+   * @param executor
+   *          executor of the parallel canonicalization, or null
+   * 
+   * @throws Exception
+   */
+  private DOMCanonicalizer(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile,
+      CanonicalizerSink sink, ExecutorService executor) throws Exception {
+    if (doc == null || profile == null) {
+      throw new NullPointerException();
+    }
+
+    this.includeList = includeList != null && includeList.isEmpty() ? null
+        : includeList;
+    this.doc = doc;
+    this.executor = executor;
+    writer = new CanonicalWriter(sink);
+    canonicalizer = new DOMCanonicalizerHandler(profile, excludeList, writer);
+  }
+
+  /**
+   * Constructor of the canonicalizer which is reused for a number of documents
+   * (see {@link #canonicalizeDocument(Document, List, List)}).
+   * 
+   * @param profile
+   *          canonicalization profile
+   */
+  private DOMCanonicalizer(CanonicalizationProfile profile) {
+    buffer = new ByteArrayOutputStream();
+    writer = new CanonicalWriter(new OutputStreamSink(buffer));
+    canonicalizer = new DOMCanonicalizerHandler(profile, null, writer);
+  }
+
+  /**
+   * Constructor of the canonicalizer of the child nodes of the current element
+   * of another canonicalizer.
+   * 
+   * @param parent
+   *          canonicalizer of the element
+   * @param sink
+   *          receiver of the canonical form of the child nodes
+   */
+  private DOMCanonicalizer(DOMCanonicalizer parent, CanonicalizerSink sink) {
+    doc = parent.doc;
+    writer = new CanonicalWriter(sink);
+    canonicalizer = new DOMCanonicalizerHandler(parent.canonicalizer, writer);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param doc
+   *          DOM document
+   * @param params
+   *          canonicalization parameters
+   * 
+   * @throws Exception
+   */
+  public static String canonicalize(Document doc, Parameters params)
+      throws Exception {
+    return canonicalize(doc, null, null, params);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param params
+   *          canonicalization parameters
+   * 
+   * @throws Exception
+   */
+  public static String canonicalize(Document doc, List<Node> includeList,
+      Parameters params) throws Exception {
+    return canonicalize(doc, includeList, null, params);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param params
+   *          canonicalization parameters
+   * 
+   * @return Returns the canonical form of an XML document
+   * 
+   * @throws Exception
+   */
+  public static String canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, Parameters params) throws Exception {
+    return canonicalize(doc, includeList, excludeList,
+        CanonicalizationProfile.valueOf(params));
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   * 
+   * @return Returns the canonical form of an XML document
+   * 
+   * @throws Exception
+   */
+  public static String canonicalize(Document doc,
+      CanonicalizationProfile profile) throws Exception {
+    return canonicalize(doc, null, null, profile);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * 
+   * @return Returns the canonical form of an XML document
+   * 
+   * @throws Exception
+   */
+  public static String canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    canonicalize(doc, includeList, excludeList, profile, out);
+    return out.toString("UTF-8");
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param params
+   *          canonicalization parameters
+   * @param out
+   *          output stream receiving the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, Parameters params,
+      OutputStream out) throws Exception {
+    canonicalize(doc, null, null, params, out);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param params
+   *          canonicalization parameters
+   * @param out
+   *          output stream receiving the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, Parameters params, OutputStream out)
+      throws Exception {
+    canonicalize(doc, includeList, excludeList,
+        CanonicalizationProfile.valueOf(params), out);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   * @param out
+   *          output stream receiving the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, CanonicalizationProfile profile,
+      OutputStream out) throws Exception {
+    canonicalize(doc, null, null, profile, out);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * @param out
+   *          output stream receiving the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile, OutputStream out)
+      throws Exception {
+    canonicalize(doc, includeList, excludeList, profile, new OutputStreamSink(
+        out));
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param params
+   *          canonicalization parameters
+   * @param writer
+   *          character stream receiving the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, Parameters params,
+      Writer writer) throws Exception {
+    canonicalize(doc, null, null, params, writer);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param params
+   *          canonicalization parameters
+   * @param writer
+   *          character stream receiving the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, Parameters params, Writer writer)
+      throws Exception {
+    canonicalize(doc, includeList, excludeList,
+        CanonicalizationProfile.valueOf(params), writer);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   * @param writer
+   *          character stream receiving the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, CanonicalizationProfile profile,
+      Writer writer) throws Exception {
+    canonicalize(doc, null, null, profile, writer);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * @param writer
+   *          character stream receiving the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile, Writer writer)
+      throws Exception {
+    canonicalize(doc, includeList, excludeList, profile, new WriterSink(
+        writer));
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param params
+   *          canonicalization parameters
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, Parameters params,
+      CanonicalizerSink sink) throws Exception {
+    canonicalize(doc, null, null, params, sink);
+  }
+
+  /**
+   * Canonicalization method. The canonical form is passed to the sink as the
+   * document is traversed, so it is never kept in memory as a whole.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param params
+   *          canonicalization parameters
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, Parameters params, CanonicalizerSink sink)
+      throws Exception {
+    canonicalize(doc, includeList, excludeList,
+        CanonicalizationProfile.valueOf(params), sink);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, CanonicalizationProfile profile,
+      CanonicalizerSink sink) throws Exception {
+    canonicalize(doc, null, null, profile, sink);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile,
+      CanonicalizerSink sink) throws Exception {
+    new DOMCanonicalizer(doc, includeList, excludeList, profile, sink, null)
+        .canonicalizeSubTree();
+  }
+
+  /**
+   * Canonicalization method with the node set selected by a filter (see
+   * {@link #canonicalize(Document, NodeFilter, CanonicalizationProfile, CanonicalizerSink)}
+   * ).
+   * 
+   * @param doc
+   *          DOM document
+   * @param filter
+   *          node filter
+   * @param profile
+   *          canonicalization profile
+   * @param out
+   *          output stream receiving the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, NodeFilter filter,
+      CanonicalizationProfile profile, OutputStream out) throws Exception {
+    canonicalize(doc, filter, profile, new OutputStreamSink(out));
+  }
+
+  /**
+   * Canonicalization method with the node set selected by a filter. The filter
+   * is evaluated during the walk over the document instead of the inclusion
+   * and exclusion lists:
+   * <ul>
+   * <li>FILTER_ACCEPT includes the node with its subtree, the same as a node of
+   * the inclusion list.</li>
+   * <li>FILTER_SKIP does not select the node, but its child nodes are filtered.
+   * A skipped element is output only as an ancestor of an accepted node, the
+   * same as an ancestor of the nodes of the inclusion list: with its
+   * attributes and without its other child nodes. Inside an accepted subtree
+   * FILTER_SKIP is the same as FILTER_ACCEPT.</li>
+   * <li>FILTER_REJECT excludes the node with its subtree, the same as a node of
+   * the exclusion list. The child nodes of the rejected node are not visited.
+   * The rejected attributes are excluded from the output.</li>
+   * </ul>
+   * 
+   * @param doc
+   *          DOM document
+   * @param filter
+   *          node filter, see {@link XPathSubsetFilter}
+   * @param profile
+   *          canonicalization profile
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, NodeFilter filter,
+      CanonicalizationProfile profile, CanonicalizerSink sink)
+      throws Exception {
+    if (filter == null) {
+      throw new NullPointerException();
+    }
+    DOMCanonicalizer canonicalizer = new DOMCanonicalizer(doc, null, null,
+        profile, sink, null);
+    canonicalizer.filter = filter;
+    canonicalizer.canonicalizeSubTree();
+  }
+
+  /**
+   * Parallel canonicalization method. The child nodes of large elements are
+   * split into runs of siblings which are canonicalized by the executor, the
+   * output is the same as the output of the sequential canonicalization. The
+   * document is read by several threads, so it must not be changed until the
+   * method returns. The method waits for the tasks it submits, so it must not
+   * be called by a task of the same bounded executor. The inclusion list
+   * disables the parallel canonicalization.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * @param out
+   *          output stream receiving the canonical form in UTF-8
+   * @param executor
+   *          executor of the tasks
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile,
+      OutputStream out, ExecutorService executor) throws Exception {
+    canonicalize(doc, includeList, excludeList, profile, new OutputStreamSink(
+        out), executor);
+  }
+
+  /**
+   * Parallel canonicalization method (see
+   * {@link #canonicalize(Document, List, List, CanonicalizationProfile, OutputStream, ExecutorService)}
+   * ).
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * @param sink
+   *          receiver of the canonical form
+   * @param executor
+   *          executor of the tasks
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile,
+      CanonicalizerSink sink, ExecutorService executor) throws Exception {
+    if (executor == null) {
+      throw new NullPointerException();
+    }
+    new DOMCanonicalizer(doc, includeList, excludeList, profile, sink,
+        executor).canonicalizeSubTree();
+  }
+
+  /**
+   * Calculates the digests of the references of a signature. The digest of a
+   * reference is the digest of the canonical form with the inclusion list of
+   * the referenced node, the same as
+   * {@link #digest(Document, List, List, CanonicalizationProfile, MessageDigest)}
+   * returns. The references are canonicalized from the outermost ones, and the
+   * canonical forms of the referenced elements are kept until all references
+   * are digested, so an element nested in another reference is copied in the
+   * same namespace context instead of being processed again.
+   * 
+   * @param doc
+   *          DOM document
+   * @param references
+   *          referenced nodes
+   * @param profile
+   *          canonicalization profile
+   * @param digest
+   *          message digest
+   * 
+   * @return Returns the digests in the order of the references
+   * 
+   * @throws Exception
+   */
+  public static List<byte[]> digestReferences(Document doc,
+      List<Node> references, CanonicalizationProfile profile,
+      final MessageDigest digest) throws Exception {
+    if (references == null || digest == null) {
+      throw new NullPointerException();
+    }
+    final byte[][] results = new byte[references.size()][];
+    List<List<Node>> includeLists = new ArrayList<List<Node>>(
+        references.size());
+    List<CanonicalizerSink> sinks = new ArrayList<CanonicalizerSink>(
+        references.size());
+    CanonicalizerSink sink = new MessageDigestSink(digest);
+    for (Node reference : references) {
+      includeLists.add(Collections.singletonList(reference));
+      sinks.add(sink);
+    }
+    digest.reset();
+    processSubsets(doc, includeLists, null, profile, sinks,
+        new SubsetListener() {
+          public void completed(int idx) {
+            results[idx] = digest.digest();
+          }
+        });
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Canonicalization method of several subsets of a document. The canonical
+   * form of every pair of the inclusion and the exclusion lists is written to
+   * its own output stream, the same as
+   * {@link #canonicalize(Document, List, List, CanonicalizationProfile, OutputStream)}
+   * writes it. The subsets are canonicalized from the outermost ones, and the
+   * canonical forms of the top elements of the inclusion lists are kept until
+   * all subsets are written, so a subtree which is included in several subsets
+   * is processed once and copied to the other outputs if its namespace
+   * context is the same.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeLists
+   *          inclusion lists, a null list includes the whole document
+   * @param excludeLists
+   *          exclusion lists of the same size, or null
+   * @param profile
+   *          canonicalization profile
+   * @param outs
+   *          output streams of the same size
+   * 
+   * @throws Exception
+   */
+  public static void canonicalizeSubsets(Document doc,
+      List<List<Node>> includeLists, List<List<Node>> excludeLists,
+      CanonicalizationProfile profile, List<OutputStream> outs)
+      throws Exception {
+    List<CanonicalizerSink> sinks = new ArrayList<CanonicalizerSink>(
+        outs.size());
+    for (OutputStream out : outs) {
+      sinks.add(new OutputStreamSink(out));
+    }
+    processSubsets(doc, includeLists, excludeLists, profile, sinks, null);
+  }
+
+  /**
+   * Canonicalization method of several subsets of a document (see
+   * {@link #canonicalizeSubsets(Document, List, List, CanonicalizationProfile, List)}
+   * ).
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeLists
+   *          inclusion lists
+   * @param excludeLists
+   *          exclusion lists, or null
+   * @param profile
+   *          canonicalization profile
+   * @param sinks
+   *          receivers of the canonical forms
+   * @param listener
+   *          listener of the completed subsets, or null
+   * 
+   * @throws Exception
+   */
+  private static void processSubsets(Document doc,
+      List<List<Node>> includeLists, List<List<Node>> excludeLists,
+      CanonicalizationProfile profile, List<CanonicalizerSink> sinks,
+      SubsetListener listener) throws Exception {
+    if (doc == null || includeLists == null || profile == null) {
+      throw new NullPointerException();
+    }
+    if (sinks.size() != includeLists.size()
+        || (excludeLists != null && excludeLists.size() != includeLists.size())) {
+      throw new IllegalArgumentException("Different number of subsets: "
+          + includeLists.size() + ", " + sinks.size());
+    }
+    Set<Node> tops = Collections
+        .newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    final int[] depths = new int[includeLists.size()];
+    Integer[] order = new Integer[includeLists.size()];
+    for (int i = 0; i < order.length; i++) {
+      depths[i] = getTops(includeLists.get(i), tops);
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer x, Integer y) {
+        return depths[x] - depths[y];
+      }
+    });
+    CanonicalizationCache cache = new CanonicalizationCache(doc, profile, tops);
+    for (int i : order) {
+      List<Node> excludeList = excludeLists != null ? excludeLists.get(i)
+          : null;
+      DOMCanonicalizer rf = new DOMCanonicalizer(doc, includeLists.get(i),
+          excludeList, profile, sinks.get(i), null);
+      rf.cache = cache;
+      rf.records = new ArrayList<CachedSubtree>();
+      rf.uncached = getAncestors(excludeList);
+      rf.canonicalizeSubTree();
+      if (listener != null) {
+        listener.completed(i);
+      }
+    }
+  }
+
+  /**
+   * Collects the top elements of an inclusion list: the elements whose parent
+   * is not included.
+   * 
+   * @param includeList
+   *          inclusion list, or null
+   * @param tops
+   *          set of the top elements
+   * 
+   * @return Returns the least depth of the top nodes in the DOM tree
+   */
+  private static int getTops(List<Node> includeList, Set<Node> tops) {
+    if (includeList == null || includeList.isEmpty()) {
+      return 0;
+    }
+    Set<Node> included = Collections
+        .newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    included.addAll(includeList);
+    int minDepth = Integer.MAX_VALUE;
+    for (Node node : includeList) {
+      if (node == null || included.contains(node.getParentNode())) {
+        continue;
+      }
+      int depth = 0;
+      for (Node n = node.getParentNode(); n != null; n = n.getParentNode()) {
+        depth++;
+      }
+      minDepth = Math.min(minDepth, depth);
+      if (node.getNodeType() == Node.ELEMENT_NODE) {
+        tops.add(node);
+      }
+    }
+    return minDepth;
+  }
+
+  /**
+   * Returns the elements which contain the nodes of an exclusion list. The
+   * canonical forms of the elements differ from the forms without the list.
+   * 
+   * @param excludeList
+   *          exclusion list, or null
+   * 
+   * @return Returns the set of the elements, or null if the list is empty
+   */
+  private static Set<Node> getAncestors(List<Node> excludeList) {
+    if (excludeList == null || excludeList.isEmpty()) {
+      return null;
+    }
+    Set<Node> ancestors = Collections
+        .newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    for (Node node : excludeList) {
+      Node n = node instanceof Attr ? ((Attr) node).getOwnerElement() : node;
+      while (n != null && ancestors.add(n)) {
+        n = n.getParentNode();
+      }
+    }
+    return ancestors;
+  }
+
+  /**
+   * Canonicalization method of a document with a cache of its subtrees (see
+   * {@link CanonicalizationCache}). The subtrees which are not changed since
+   * the previous canonicalization with the cache are copied.
+   * 
+   * @param cache
+   *          cache of the document
+   * @param out
+   *          output stream receiving the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(CanonicalizationCache cache,
+      OutputStream out) throws Exception {
+    canonicalize(cache, new OutputStreamSink(out));
+  }
+
+  /**
+   * Canonicalization method of a document with a cache of its subtrees (see
+   * {@link #canonicalize(CanonicalizationCache, OutputStream)}).
+   * 
+   * @param cache
+   *          cache of the document
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(CanonicalizationCache cache,
+      CanonicalizerSink sink) throws Exception {
+    DOMCanonicalizer rf = new DOMCanonicalizer(cache.getDocument(), null,
+        null, cache.getProfile(), sink, null);
+    rf.cache = cache;
+    rf.records = new ArrayList<CachedSubtree>();
+    rf.canonicalizeSubTree();
+  }
+
+  /**
+   * Opens the canonical form of a document as an input stream. The document
+   * is canonicalized while the stream is read, only as far as needed to fill
+   * the buffer of the reader, so the canonical form is never kept in memory.
+   * The document must not be changed until the stream is read or closed.
+   * 
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   * 
+   * @return Returns the stream of the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static InputStream openStream(Document doc,
+      CanonicalizationProfile profile) throws Exception {
+    return openStream(doc, null, null, profile);
+  }
+
+  /**
+   * Opens the canonical form of a document as an input stream (see
+   * {@link #openStream(Document, CanonicalizationProfile)}).
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * 
+   * @return Returns the stream of the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static InputStream openStream(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile)
+      throws Exception {
+    CanonicalInputStream in = new CanonicalInputStream();
+    DOMCanonicalizer rf = new DOMCanonicalizer(doc, includeList, excludeList,
+        profile, in, null);
+    if (rf.includeList != null) {
+      rf.processIncludeList();
+    } else {
+      rf.nodes = Collections.<Node> singletonList(doc);
+      rf.nodeDepths = new int[1];
+    }
+    in.setSource(rf);
+    return in;
+  }
+
+  /**
+   * Opens the canonical form of a document as a channel (see
+   * {@link #openStream(Document, CanonicalizationProfile)}).
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * 
+   * @return Returns the channel of the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static ReadableByteChannel openChannel(Document doc,
+      List<Node> includeList, List<Node> excludeList,
+      CanonicalizationProfile profile) throws Exception {
+    return Channels.newChannel(openStream(doc, includeList, excludeList,
+        profile));
+  }
+
+  /**
+   * Canonicalization method of a batch of documents. The documents are
+   * canonicalized by the executor, each in one task. The tasks share the
+   * profile and reuse the buffers and the namespace stacks of the completed
+   * tasks, so the number of the allocated buffers is limited by the number of
+   * concurrent tasks. Any executor can be used, including the executor of
+   * virtual threads.
+   * 
+   * @param docs
+   *          DOM documents
+   * @param profile
+   *          canonicalization profile
+   * @param executor
+   *          executor of the tasks
+   * 
+   * @return Returns the canonical forms of the documents in UTF-8, in the
+   *         order of the documents
+   * 
+   * @throws Exception
+   */
+  public static List<byte[]> canonicalize(List<Document> docs,
+      CanonicalizationProfile profile, Executor executor) throws Exception {
+    return canonicalize(docs, null, null, profile, executor);
+  }
+
+  /**
+   * Canonicalization method of a batch of documents (see
+   * {@link #canonicalize(List, CanonicalizationProfile, Executor)}).
+   * 
+   * @param docs
+   *          DOM documents
+   * @param includeLists
+   *          inclusion lists of the documents, or null
+   * @param excludeLists
+   *          exclusion lists of the documents, or null
+   * @param profile
+   *          canonicalization profile
+   * @param executor
+   *          executor of the tasks
+   * 
+   * @return Returns the canonical forms of the documents in UTF-8, in the
+   *         order of the documents
+   * 
+   * @throws Exception
+   */
+  public static List<byte[]> canonicalize(List<Document> docs,
+      List<List<Node>> includeLists, List<List<Node>> excludeLists,
+      final CanonicalizationProfile profile, Executor executor)
+      throws Exception {
+    if (docs == null || profile == null || executor == null) {
+      throw new NullPointerException();
+    }
+    if ((includeLists != null && includeLists.size() != docs.size())
+        || (excludeLists != null && excludeLists.size() != docs.size())) {
+      throw new IllegalArgumentException(
+          "The number of lists differs from the number of documents");
+    }
+
+    final Queue<DOMCanonicalizer> idle = new ConcurrentLinkedQueue<DOMCanonicalizer>();
+    List<FutureTask<byte[]>> tasks = new ArrayList<FutureTask<byte[]>>(
+        docs.size());
+    try {
+      for (int i = 0; i < docs.size(); i++) {
+        final Document doc = docs.get(i);
+        final List<Node> includeList = includeLists != null ? includeLists
+            .get(i) : null;
+        final List<Node> excludeList = excludeLists != null ? excludeLists
+            .get(i) : null;
+        FutureTask<byte[]> task = new FutureTask<byte[]>(
+            new Callable<byte[]>() {
+              public byte[] call() throws Exception {
+                DOMCanonicalizer canonicalizer = idle.poll();
+                if (canonicalizer == null) {
+                  canonicalizer = new DOMCanonicalizer(profile);
+                }
+                byte[] result = canonicalizer.canonicalizeDocument(doc,
+                    includeList, excludeList);
+                // the canonicalizer which failed is not reused
+                idle.offer(canonicalizer);
+                return result;
+              }
+            });
+        tasks.add(task);
+        executor.execute(task);
+      }
+      List<byte[]> results = new ArrayList<byte[]>(tasks.size());
+      for (FutureTask<byte[]> task : tasks) {
+        results.add(getResult(task));
+      }
+      return results;
+    } finally {
+      for (FutureTask<byte[]> task : tasks) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Calculates the digest of the canonical form.
+   * 
+   * @param doc
+   *          DOM document
+   * @param params
+   *          canonicalization parameters
+   * @param digest
+   *          message digest
+   * 
+   * @return Returns the digest of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static byte[] digest(Document doc, Parameters params,
+      MessageDigest digest) throws Exception {
+    return digest(doc, null, null, params, digest);
+  }
+
+  /**
+   * Calculates the digest of the canonical form. The canonical form is fed
+   * into the digest in blocks as the document is traversed and is not
+   * returned.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
    * @param params
    *          canonicalization parameters
+   * @param digest
+   *          message digest
+   * 
+   * @return Returns the digest of the canonical form
    * 
    * @throws Exception
    */
-  private DOMCanonicalizer(Document doc, List<Node> includeList,
-      List<Node> excludeList, Parameters params) throws Exception {
-    if (doc == null) {
-      throw new NullPointerException();
-    }
+  public static byte[] digest(Document doc, List<Node> includeList,
+      List<Node> excludeList, Parameters params, MessageDigest digest)
+      throws Exception {
+    return digest(doc, includeList, excludeList,
+        CanonicalizationProfile.valueOf(params), digest);
+  }
 
-    this.includeList = includeList != null && includeList.isEmpty() ? null
-        : includeList;
-    this.doc = doc;
-    StringBuffer sb = new StringBuffer();
-    canonicalizer = new DOMCanonicalizerHandler(
-        params == null ? new Parameters() : params, excludeList != null
-            && excludeList.isEmpty() ? null : excludeList, sb);
+  /**
+   * Calculates the digest of the canonical form.
+   * 
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   * @param digest
+   *          message digest
+   * 
+   * @return Returns the digest of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static byte[] digest(Document doc, CanonicalizationProfile profile,
+      MessageDigest digest) throws Exception {
+    return digest(doc, null, null, profile, digest);
   }
 
   /**
-   * Constructor.
+   * Calculates the digest of the canonical form.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * @param profile
+   *          canonicalization profile
+   * @param digest
+   *          message digest
+   * 
+   * @return Returns the digest of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static byte[] digest(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile,
+      MessageDigest digest) throws Exception {
+    canonicalize(doc, includeList, excludeList, profile,
+        new MessageDigestSink(digest));
+    return digest.digest();
+  }
+
+  /**
+   * Updates the signature with the canonical form.
    * 
    * @param doc
    *          DOM document
    * @param params
    *          canonicalization parameters
+   * @param signature
+   *          signature initialized for signing or verification
    * 
    * @throws Exception
    */
-  public static String canonicalize(Document doc, Parameters params)
-      throws Exception {
-    return canonicalize(doc, null, null, params);
+  public static void canonicalize(Document doc, Parameters params,
+      Signature signature) throws Exception {
+    canonicalize(doc, null, null, params, signature);
   }
 
   /**
-   * Constructor.
+   * Updates the signature with the canonical form. The canonical form is fed
+   * into the signature in blocks as the document is traversed.
    * 
    * @param doc
    *          DOM document
    * @param includeList
    *          inclusion list
+   * @param excludeList
+   *          exclusion list
    * @param params
    *          canonicalization parameters
+   * @param signature
+   *          signature initialized for signing or verification
    * 
    * @throws Exception
    */
-  public static String canonicalize(Document doc, List<Node> includeList,
-      Parameters params) throws Exception {
-    return canonicalize(doc, includeList, null, params);
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, Parameters params, Signature signature)
+      throws Exception {
+    canonicalize(doc, includeList, excludeList,
+        CanonicalizationProfile.valueOf(params), signature);
   }
 
   /**
-   * Canonicalization method.
+   * Updates the signature with the canonical form.
+   * 
+   * @param doc
+   *          DOM document
+   * @param profile
+   *          canonicalization profile
+   * @param signature
+   *          signature initialized for signing or verification
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, CanonicalizationProfile profile,
+      Signature signature) throws Exception {
+    canonicalize(doc, null, null, profile, signature);
+  }
+
+  /**
+   * Updates the signature with the canonical form.
    * 
    * @param doc
    *          DOM document
@@ -89,133 +1154,652 @@ public class DOMCanonicalizer {
    *          inclusion list
    * @param excludeList
    *          exclusion list
-   * @param params
-   *          canonicalization parameters
+   * @param profile
+   *          canonicalization profile
+   * @param signature
+   *          signature initialized for signing or verification
    * 
-   * @return Returns the canonical form of an XML document
+   * @throws Exception
+   */
+  public static void canonicalize(Document doc, List<Node> includeList,
+      List<Node> excludeList, CanonicalizationProfile profile,
+      Signature signature) throws Exception {
+    canonicalize(doc, includeList, excludeList, profile, new SignatureSink(
+        signature));
+  }
+
+  /**
+   * Canonicalizing of a document by the reused canonicalizer.
+   * 
+   * @param doc
+   *          DOM document
+   * @param includeList
+   *          inclusion list
+   * @param excludeList
+   *          exclusion list
+   * 
+   * @return Returns the canonical form in UTF-8
    * 
    * @throws Exception
    */
-  public static String canonicalize(Document doc, List<Node> includeList,
-      List<Node> excludeList, Parameters params) throws Exception {
-    return new DOMCanonicalizer(doc, includeList, excludeList, params)
-        .canonicalizeSubTree();
+  private byte[] canonicalizeDocument(Document doc, List<Node> includeList,
+      List<Node> excludeList) throws Exception {
+    if (doc == null) {
+      throw new NullPointerException();
+    }
+    this.includeList = includeList != null && includeList.isEmpty() ? null
+        : includeList;
+    this.doc = doc;
+    nodes = Collections.emptyList();
+    nodeDepths = null;
+    nodeIdx = 0;
+    canonicalizer.reset(excludeList);
+    buffer.reset();
+    canonicalizeSubTree();
+    this.doc = null;
+    this.includeList = null;
+    nodes = Collections.emptyList();
+    return buffer.toByteArray();
   }
 
   /**
    * Canonicalizing of subtree.
    * 
-   * @return Returns the canonical form of a subtree
-   * 
    * @throws Exception
    */
-  private String canonicalizeSubTree() throws Exception {
-    if (includeList == null) {
-      process(doc);
+  private void canonicalizeSubTree() throws Exception {
+    if (filter != null) {
+      processFiltered(doc, 0);
+    } else if (includeList == null) {
+      if (executor != null) {
+        weights = new IdentityHashMap<Node, Integer>();
+        measure(doc);
+      }
+      process(doc, 0);
     } else {
       processIncludeList();
-      while (nodes.size() > 0) {
-        process(nodes.get(0));
+      while (nodeIdx < nodes.size()) {
+        process(nodes.get(nodeIdx), nodeDepths[nodeIdx]);
       }
     }
-    return canonicalizer.getOutputBlock().toString();
+    writer.flush();
+    canonicalizer.complete();
   }
 
   /**
-   * Processing (sorting) a inclusion list.
+   * Processing (sorting) a inclusion list. The included nodes and all their
+   * ancestors are ordered by depth and then in document order. The order is
+   * produced by a breadth-first walk over the marked nodes, so the processing
+   * is linear in the size of the document.
    */
   private void processIncludeList() {
-    List<Node> allNodes = new ArrayList<Node>();
+    Set<Node> allNodes = Collections
+        .newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    List<Node> roots = new ArrayList<Node>();
     for (Node node : includeList) {
       Node n = node;
-      do {
-        if (!allNodes.contains(n)) {
-          allNodes.add(n);
+      while (n != null && allNodes.add(n)) {
+        if (n.getParentNode() == null) {
+          roots.add(n);
         }
         n = n.getParentNode();
-      } while (n != null);
-    }
-    Collections.sort(allNodes, new Comparator<Node>() {
-      @Override
-      public int compare(Node n1, Node n2) {
-        int l1 = canonicalizer.getNodeDepth(n1);
-        int l2 = canonicalizer.getNodeDepth(n2);
-        if (l1 != l2) {
-          return l1 - l2;
-        } else {
-          Node prnt1 = n1.getParentNode();
-          Node prnt2 = n2.getParentNode();
-          if (prnt1 == null) {
-            return -1;
-          } else if (prnt2 == null) {
-            return 1;
+      }
+    }
+    nodes = new ArrayList<Node>(allNodes.size());
+    nodeDepths = new int[allNodes.size()];
+    nodes.addAll(roots);
+    for (int i = 0; i < nodes.size(); i++) {
+      NodeList nl = nodes.get(i).getChildNodes();
+      for (int j = 0; j < nl.getLength(); j++) {
+        if (allNodes.contains(nl.item(j))) {
+          nodeDepths[nodes.size()] = nodeDepths[i] + 1;
+          nodes.add(nl.item(j));
+        }
+      }
+    }
+    nodeIdx = 0;
+  }
+
+  /**
+   * Returns the next node of the sorted inclusion list.
+   * 
+   * @return Returns the next node, or null if all nodes are processed
+   */
+  private Node getNextNode() {
+    return nodeIdx < nodes.size() ? nodes.get(nodeIdx) : null;
+  }
+
+  /**
+   * Processing a node. The subtree is walked without recursion (see
+   * {@link NodeTraversal}), so the depth of the document is limited by the
+   * heap and not by the thread stack.
+   * 
+   * @param node
+   *          DOM node
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @throws IOException
+   */
+  private void process(Node node, int depth) throws IOException {
+    NodeTraversal traversal = new NodeTraversal(node, depth);
+    while (step(traversal)) {
+      // the next node
+    }
+  }
+
+  /**
+   * Processing the next step of a walk: the start of the current node, or the
+   * move to the next node after the current node is complete.
+   * 
+   * @param traversal
+   *          walk over a subtree
+   * 
+   * @return Returns false if the subtree is complete
+   * 
+   * @throws IOException
+   */
+  private boolean step(NodeTraversal traversal) throws IOException {
+    Node node = traversal.getNode();
+    if (!traversal.isComplete()) {
+      int depth = traversal.getDepth();
+      if (cache != null && processCached(node, depth)) {
+        traversal.setComplete();
+        return true;
+      }
+      if (processStart(node, depth)) {
+        if (node.hasChildNodes()) {
+          if (weights != null && isParallel(node)) {
+            processParallel(node, depth + 1);
+          } else {
+            Node next = getNextNode();
+            boolean b = next != null && node == next.getParentNode();
+            Node child = getIncluded(node.getFirstChild(), b);
+            if (child != null) {
+              traversal.pushChild(child, b);
+              return true;
+            }
           }
-          if (prnt1.equals(prnt2)) {
-            NodeList nl = prnt1.getChildNodes();
-            l1 = -1;
-            l2 = -1;
-            for (int i = 0; i < nl.getLength(); i++) {
-              if (n1.equals(nl.item(i))) {
-                l1 = i;
-              } else if (n2.equals(nl.item(i))) {
-                l2 = i;
-              }
-              if (l1 != -1 && l2 != -1) {
-                break;
-              }
+        }
+        processEnd(node, depth);
+      }
+      traversal.setComplete();
+      return true;
+    }
+    if (traversal.isRoot()) {
+      return false;
+    }
+    Node sibling = getIncluded(node.getNextSibling(), traversal.isFiltered());
+    if (sibling != null) {
+      traversal.moveTo(sibling);
+    } else {
+      traversal.pop();
+      processEnd(traversal.getNode(), traversal.getDepth());
+    }
+    return true;
+  }
+
+  /**
+   * Processing a node with the node set selected by the filter. The start of
+   * a skipped element is delayed until an accepted node is found in its
+   * subtree, so the ancestors of the accepted nodes are output without a list
+   * of the selected nodes. The steps of an {@link XPathSubsetFilter} matched by
+   * the ancestors are kept during the walk (see {@link XPathSubsetMatcher}).
+   * 
+   * @param root
+   *          DOM node
+   * @param rootDepth
+   *          depth of the node in the DOM tree
+   * 
+   * @throws IOException
+   */
+  private void processFiltered(Node root, int rootDepth) throws IOException {
+    XPathSubsetMatcher matcher = null;
+    if (filter instanceof XPathSubsetFilter) {
+      matcher = new XPathSubsetMatcher((XPathSubsetFilter) filter);
+    }
+    canonicalizer.setFilter(matcher != null ? matcher : filter);
+    NodeTraversal traversal = new NodeTraversal(root, rootDepth);
+    // number of the ancestors of the current node which starts are output
+    int started = 0;
+    while (true) {
+      Node node = traversal.getNode();
+      if (!traversal.isComplete()) {
+        int depth = traversal.getDepth();
+        int level = traversal.getLevel();
+        short result = matcher != null ? matcher.push(node, level) : filter
+            .acceptNode(node);
+        boolean bAccepted = !traversal.isRoot() && traversal.isFiltered();
+        if (result == NodeFilter.FILTER_ACCEPT
+            || (bAccepted && result == NodeFilter.FILTER_SKIP)) {
+          for (; started < level; started++) {
+            if (matcher != null) {
+              matcher.select(started);
             }
-            return l1 - l2;
-          } else {
-            return compare(prnt1, prnt2);
+            processStart(traversal.getAncestor(started), rootDepth + started);
+          }
+          if (matcher != null) {
+            matcher.select(level);
+          }
+          processStart(node, depth);
+          Node child = node.getFirstChild();
+          if (child != null) {
+            traversal.pushChild(child, true);
+            started++;
+            continue;
           }
+          processEnd(node, depth);
+        } else if (result == NodeFilter.FILTER_SKIP && node.hasChildNodes()) {
+          traversal.pushChild(node.getFirstChild(), false);
+          continue;
         }
+        traversal.setComplete();
+        continue;
       }
-    });
-    nodes = allNodes;
+      if (traversal.isRoot()) {
+        return;
+      }
+      Node sibling = node.getNextSibling();
+      if (sibling != null) {
+        traversal.moveTo(sibling);
+      } else {
+        traversal.pop();
+        int level = traversal.getLevel();
+        if (level < started) {
+          processEnd(traversal.getNode(), traversal.getDepth());
+          started = level;
+        }
+      }
+    }
+  }
+
+  /**
+   * Processing the next step of the canonicalization pulled by
+   * {@link CanonicalInputStream}. The output is flushed after the last step.
+   * 
+   * @return Returns false if the canonicalization is complete
+   * 
+   * @throws IOException
+   */
+  boolean pull() throws IOException {
+    while (traversal == null || !step(traversal)) {
+      if (nodeIdx == nodes.size()) {
+        traversal = null;
+        writer.flush();
+        canonicalizer.complete();
+        return false;
+      }
+      traversal = new NodeTraversal(nodes.get(nodeIdx), nodeDepths[nodeIdx]);
+    }
+    return true;
   }
 
   /**
-   * Processing a node.
+   * Processing the start of a node.
    * 
    * @param node
    *          DOM node
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @return Returns true if the node is processed, false if it is excluded
+   * 
+   * @throws IOException
    */
-  private void process(Node node) {
+  private boolean processStart(Node node, int depth) throws IOException {
+    if (node == getNextNode()) {
+      nodeIdx++;
+    }
     if (canonicalizer.isInExcludeList(node))
-      return;
+      return false;
 
     switch (node.getNodeType()) {
     case Node.ELEMENT_NODE:
-      canonicalizer.processElement(node);
+      canonicalizer.processElement(node, depth);
       break;
     case Node.TEXT_NODE:
-      canonicalizer.processText(node);
+      canonicalizer.processText(node, depth);
       break;
     case Node.PROCESSING_INSTRUCTION_NODE:
-      canonicalizer.processPI(node);
+      canonicalizer.processPI(node, depth);
       break;
     case Node.COMMENT_NODE:
-      canonicalizer.processComment(node);
+      canonicalizer.processComment(node, depth);
       break;
     case Node.CDATA_SECTION_NODE:
       canonicalizer.processCData(node);
       break;
     }
-    if (nodes.size() > 0 && node.equals(nodes.get(0))) {
-      nodes.remove(0);
+    return true;
+  }
+
+  /**
+   * Processing the end of a node.
+   * 
+   * @param node
+   *          DOM node
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @throws IOException
+   */
+  private void processEnd(Node node, int depth) throws IOException {
+    if (node.getNodeType() == Node.ELEMENT_NODE) {
+      canonicalizer.processEndElement(node, depth);
+      if (cache != null && !records.isEmpty()
+          && records.get(records.size() - 1).getNode() == node) {
+        CachedSubtree record = records.remove(records.size() - 1);
+        record.complete(writer.endRecord(record.getStart()),
+            canonicalizer.getSequentialUris(record.getSequentialCount()));
+        cache.put(record);
+      }
+    }
+  }
+
+  /**
+   * Copies the cached canonical form of an element. If the element is not
+   * cached in the current namespace context, the recording of its output is
+   * started. With an inclusion list only the elements whose child nodes are
+   * processed in full are cached.
+   * 
+   * @param node
+   *          DOM node
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @return Returns true if the cached form is copied, false if the node must
+   *         be processed
+   * 
+   * @throws IOException
+   */
+  private boolean processCached(Node node, int depth) throws IOException {
+    if (node.getNodeType() != Node.ELEMENT_NODE
+        || !cache.isCached(node, depth)
+        || (uncached != null && uncached.contains(node))) {
+      return false;
+    }
+    boolean bListed = node == getNextNode();
+    Node next = bListed ? (nodeIdx + 1 < nodes.size() ? nodes.get(nodeIdx + 1)
+        : null) : getNextNode();
+    if (next != null && node == next.getParentNode()) {
+      return false;
+    }
+    long context = canonicalizer.getContextKey(cache);
+    CachedSubtree cached = cache.get(node, context);
+    if (cached != null) {
+      if (bListed) {
+        nodeIdx++;
+      }
+      byte[] bytes = cached.getBytes();
+      writer.write(bytes, 0, bytes.length);
+      canonicalizer.addSequentialUris(cached.getSequentialUris());
+      return true;
+    }
+    records.add(new CachedSubtree(node, context, writer.startRecord(),
+        canonicalizer.getSequentialCount()));
+    return false;
+  }
+
+  /**
+   * Returns the first processed node of the siblings.
+   * 
+   * @param node
+   *          first sibling, or null
+   * @param b
+   *          true if only the next node of the inclusion list is processed
+   * 
+   * @return Returns the node, or null if no sibling is processed
+   */
+  private Node getIncluded(Node node, boolean b) {
+    if (b) {
+      Node next = getNextNode();
+      while (node != null && node != next) {
+        node = node.getNextSibling();
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Measures the number of nodes and attributes in a subtree. Every node is
+   * read once, so the nodes of a DOM which builds them lazily are complete
+   * before they are read by several threads. The subtree is walked without
+   * recursion.
+   * 
+   * @param node
+   *          DOM node
+   * 
+   * @return Returns the weight of the subtree
+   */
+  private int measure(Node node) {
+    Node[] parents = new Node[16];
+    int[] parentWeights = new int[16];
+    int level = 0;
+    while (true) {
+      node.getNodeName();
+      node.getNodeValue();
+      int weight = 1;
+      NamedNodeMap attrs = node.getAttributes();
+      if (attrs != null) {
+        for (int i = 0; i < attrs.getLength(); i++) {
+          Node attr = attrs.item(i);
+          attr.getNodeName();
+          attr.getNodeValue();
+          weight++;
+        }
+      }
+      Node child = node.getFirstChild();
+      if (child != null) {
+        if (level == parents.length) {
+          parents = Arrays.copyOf(parents, level * 2);
+          parentWeights = Arrays.copyOf(parentWeights, level * 2);
+        }
+        parents[level] = node;
+        parentWeights[level] = weight;
+        level++;
+        node = child;
+        continue;
+      }
+      // the subtree is complete
+      while (true) {
+        if (weight >= MIN_TASK_WEIGHT
+            && node.getNodeType() == Node.ELEMENT_NODE) {
+          weights.put(node, weight);
+        }
+        if (level == 0) {
+          return weight;
+        }
+        parentWeights[level - 1] += weight;
+        Node sibling = node.getNextSibling();
+        if (sibling != null) {
+          node = sibling;
+          break;
+        }
+        level--;
+        node = parents[level];
+        parents[level] = null;
+        weight = parentWeights[level];
+      }
+    }
+  }
+
+  /**
+   * Returns the weight of a subtree. Only the weights of large subtrees are
+   * kept, the small ones are measured again.
+   * 
+   * @param node
+   *          DOM node
+   * 
+   * @return Returns the weight
+   */
+  private int getWeight(Node node) {
+    Integer weight = weights.get(node);
+    return weight != null ? weight : measure(node);
+  }
+
+  /**
+   * Returns whether the child nodes of an element are canonicalized in
+   * parallel. A child which holds the most of the nodes is split itself.
+   * 
+   * @param node
+   *          DOM node
+   * 
+   * @return Returns true if the child nodes are split, false - otherwise
+   */
+  private boolean isParallel(Node node) {
+    Integer weight = weights.get(node);
+    if (weight == null || weight < PARALLEL_THRESHOLD) {
+      return false;
+    }
+    for (Node child = node.getFirstChild(); child != null; child = child
+        .getNextSibling()) {
+      // the small subtrees are not kept
+      Integer childWeight = weights.get(child);
+      if (childWeight != null && childWeight > weight / 2) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Processing the child nodes of an element in parallel. The runs of siblings
+   * are canonicalized by the tasks into separate buffers which are output in
+   * document order. A run which assigned sequential prefixes after a previous
+   * run did is processed again, so the numbering does not change.
+   * 
+   * @param node
+   *          DOM element
+   * @param depth
+   *          depth of the child nodes in the DOM tree
+   * 
+   * @throws IOException
+   */
+  private void processParallel(Node node, int depth) throws IOException {
+    int target = Math.max(MIN_TASK_WEIGHT, weights.get(node) / MAX_TASKS);
+    List<Node> bounds = new ArrayList<Node>();
+    for (Node child = node.getFirstChild(); child != null;) {
+      bounds.add(child);
+      for (int weight = 0; child != null && weight < target; child = child
+          .getNextSibling()) {
+        weight += getWeight(child);
+      }
+    }
+    bounds.add(null);
+
+    int count = bounds.size() - 1;
+    // the number of the runs which are canonicalized ahead of the output
+    int window = Runtime.getRuntime().availableProcessors() * 2;
+    List<DOMCanonicalizer> forks = new ArrayList<DOMCanonicalizer>(count);
+    List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>(
+        count);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(count);
+    try {
+      for (int i = 0; i < count; i++) {
+        while (futures.size() < count && futures.size() < i + window) {
+          int j = futures.size();
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          DOMCanonicalizer fork = new DOMCanonicalizer(this,
+              new OutputStreamSink(out));
+          forks.add(fork);
+          outputs.add(out);
+          futures.add(submit(fork, bounds.get(j), bounds.get(j + 1), depth));
+        }
+        await(futures.get(i));
+        if (canonicalizer.join(forks.get(i).canonicalizer)) {
+          ByteArrayOutputStream out = outputs.get(i);
+          writer.write(out.toByteArray(), 0, out.size());
+        } else {
+          for (Node child = bounds.get(i); child != bounds.get(i + 1); child = child
+              .getNextSibling()) {
+            process(child, depth);
+          }
+        }
+        forks.set(i, null);
+        outputs.set(i, null);
+      }
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(false);
+      }
     }
-    if (node.hasChildNodes()) {
-      boolean b = nodes.size() > 0 && node.equals(nodes.get(0).getParentNode());
-      NodeList nl = node.getChildNodes();
-      for (int i = 0; i < nl.getLength(); i++) {
-        if (!b || (nodes.size() > 0 && nl.item(i).equals(nodes.get(0)))) {
-          process(nl.item(i));
+  }
+
+  /**
+   * Submits the canonicalization of a run of siblings.
+   * 
+   * @param fork
+   *          canonicalizer of the run
+   * @param first
+   *          first node of the run
+   * @param end
+   *          node after the run, or null
+   * @param depth
+   *          depth of the nodes in the DOM tree
+   * 
+   * @return Returns the result of the task
+   */
+  private Future<Void> submit(final DOMCanonicalizer fork, final Node first,
+      final Node end, final int depth) {
+    return executor.submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        for (Node child = first; child != end; child = child.getNextSibling()) {
+          fork.process(child, depth);
         }
+        fork.writer.flush();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Waits for a task to complete.
+   * 
+   * @param future
+   *          result of the task
+   * 
+   * @throws IOException
+   */
+  private static void await(Future<Void> future) throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
       }
+      throw new IOException(cause);
     }
+  }
 
-    if (node.getNodeType() == Node.ELEMENT_NODE) {
-      canonicalizer.processEndElement(node);
+  /**
+   * Waits for a task to complete.
+   * 
+   * @param future
+   *          result of the task
+   * 
+   * @return Returns the result
+   * 
+   * @throws Exception
+   */
+  private static <T> T getResult(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
     }
   }
-}
\ No newline at end of file
+}
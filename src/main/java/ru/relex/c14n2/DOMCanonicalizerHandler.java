@@ -1,22 +1,24 @@
 package ru.relex.c14n2;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.xml.utils.ObjectVector;
-import org.apache.xpath.compiler.XPathParser;
 import org.apache.xpath.objects.XString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Node;
 import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.traversal.NodeFilter;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -31,57 +33,278 @@ class DOMCanonicalizerHandler {
   private static final String XML = "xml";
   private static final String XSD = "xsd";
 
-  private static final String CF = "&#x%s;";
   private static final String C = ":";
+  private static final String SEQUENTIAL_PREFIX = "n";
 
-  private static final byte[] XD = {'&','#','x','D',';'};
-  private static final byte[] GT = {'&','g','t',';'};
-  private static final byte[] LT = {'&','l','t',';'};
-  private static final byte[] AMP = {'&','a','m','p',';'};
+  private static final String COMMENT_START = "<!--";
+  private static final String COMMENT_END = "-->";
 
-  private List<Node> excludeList;
-  private Parameters parameters;
-  private StringBuffer outputBuffer;
+  private Set<Node> excludeSet;
+  private NodeFilter filter = null;
+  private CanonicalizationProfile profile;
+  private CanonicalWriter writer;
 
   private boolean bStart = true;
   private boolean bEnd = false;
 
-  private Map<String, List<NamespaceContextParams>> namespaces;
+  private NamespaceStack namespaces;
   private Map<String, String> sequentialUriMap = new HashMap<String, String>();
+  // URIs of the sequential prefixes in the order of the prefixes
+  private List<String> sequentialUriList = new ArrayList<String>();
+  // key of the first assigned sequential prefixes in the context cache
+  private int sequentialKey = 0;
+  private int sequentialKeyCount = 0;
   private boolean bSequential = false;
+  private int forkedPrefixCount = 0;
 
-  private Map<String, NSContext> xpathesNsMap = new HashMap<String, NSContext>();
+  private QNameIndex qnameAwareAttributes;
+  private QNameIndex qnameAwareElements;
+  private QNameIndex qnameAwareXPathElements;
+
+  private CanonicalizationMetrics metrics = new CanonicalizationMetrics();
+  private long startByteCount;
+  private long startNanos;
+
+  private final List<NamespaceContextParams> outNSList = new ArrayList<NamespaceContextParams>();
+
+  // the XPath expression of the last processed XPath element
+  private Node xpathElement = null;
+  private NSContext xpathContext = null;
+
+  private static final Comparator<NamespaceContextParams> URI_ORDER = new Comparator<NamespaceContextParams>() {
+    public int compare(NamespaceContextParams x, NamespaceContextParams y) {
+      return x.getUri().compareTo(y.getUri());
+    }
+  };
+
+  private static final Comparator<Attribute> ATTRIBUTE_ORDER = new Comparator<Attribute>() {
+    public int compare(Attribute x, Attribute y) {
+      return compareNames(x.getUri(), x.getLocalName(), y.getUri(),
+          y.getLocalName());
+    }
+  };
+
+  private static final Comparator<NamespaceContextParams> PREFIX_ORDER = new Comparator<NamespaceContextParams>() {
+    public int compare(NamespaceContextParams x, NamespaceContextParams y) {
+      return x.getPrefix().compareTo(y.getPrefix());
+    }
+  };
 
   /**
    * Constructor.
    * 
-   * @param parameters
-   *          canonicalization parameters
+   * @param profile
+   *          canonicalization profile
    * @param excludeList
-   *          inclusion list
-   * @param outputBuffer
+   *          exclusion list
+   * @param writer
    *          output
    */
-  protected DOMCanonicalizerHandler(Parameters parameters,
-      List<Node> excludeList, StringBuffer outputBuffer) {
-    this.parameters = parameters;
-    this.outputBuffer = outputBuffer;
-    this.excludeList = excludeList;
-    bSequential = parameters.getPrefixRewrite().equals(Parameters.SEQUENTIAL);
+  protected DOMCanonicalizerHandler(CanonicalizationProfile profile,
+      List<Node> excludeList, CanonicalWriter writer) {
+    this.profile = profile;
+    this.writer = writer;
+    this.excludeSet = createExcludeSet(excludeList);
+    bSequential = profile.isSequential();
+    qnameAwareAttributes = profile.getQnameAwareAttributeIndex();
+    qnameAwareElements = profile.getQnameAwareElementIndex();
+    qnameAwareXPathElements = profile.getQnameAwareXPathElementIndex();
+
+    namespaces = new NamespaceStack();
+    pushDefaultNamespace();
 
-    namespaces = new HashMap<String, List<NamespaceContextParams>>();
+    bStart = true;
+    bEnd = false;
+    start();
+  }
+
+  /**
+   * Creates a handler of the child nodes of the current element. The handler
+   * starts with a snapshot of the namespace context and the sequential
+   * prefixes of the parent handler, so it can run in another thread while the
+   * parent handler is not used.
+   * 
+   * @param parent
+   *          handler of the element
+   * @param writer
+   *          output
+   */
+  protected DOMCanonicalizerHandler(DOMCanonicalizerHandler parent,
+      CanonicalWriter writer) {
+    this.profile = parent.profile;
+    this.writer = writer;
+    this.excludeSet = parent.excludeSet;
+    this.filter = parent.filter;
+    bSequential = parent.bSequential;
+    qnameAwareAttributes = parent.qnameAwareAttributes;
+    qnameAwareElements = parent.qnameAwareElements;
+    qnameAwareXPathElements = parent.qnameAwareXPathElements;
+
+    namespaces = new NamespaceStack(parent.namespaces);
+    sequentialUriMap = new HashMap<String, String>(parent.sequentialUriMap);
+    sequentialUriList = new ArrayList<String>(parent.sequentialUriList);
+    forkedPrefixCount = sequentialUriMap.size();
+
+    bStart = parent.bStart;
+    bEnd = parent.bEnd;
+  }
+
+  /**
+   * Prepares the handler for the next document. The namespace declarations of
+   * the previous document are removed, the allocated entries are kept for
+   * reuse.
+   * 
+   * @param excludeList
+   *          exclusion list of the next document
+   */
+  protected void reset(List<Node> excludeList) {
+    excludeSet = createExcludeSet(excludeList);
+    namespaces.pop(0);
+    pushDefaultNamespace();
+    sequentialUriMap.clear();
+    sequentialUriList.clear();
+    sequentialKey = 0;
+    sequentialKeyCount = 0;
+    bStart = true;
+    bEnd = false;
+    metrics = new CanonicalizationMetrics();
+    namespaces.resetMaxSize();
+    start();
+  }
+
+  /**
+   * Starts measuring of the canonicalization. The time is measured only if
+   * the profile has a listener.
+   */
+  private void start() {
+    startByteCount = writer.getByteCount();
+    startNanos = profile.getListener() != null ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Completion of the canonicalization. The metrics are passed to the listener
+   * of the profile. The output must be flushed before.
+   */
+  protected void complete() {
+    CanonicalizationListener listener = profile.getListener();
+    if (listener == null) {
+      return;
+    }
+    metrics.maxNamespaceDepth = Math.max(metrics.maxNamespaceDepth,
+        namespaces.getMaxSize());
+    metrics.outputByteCount = writer.getByteCount() - startByteCount;
+    metrics.elapsedNanos = System.nanoTime() - startNanos;
+    listener.canonicalized(metrics);
+  }
 
-    List<NamespaceContextParams> lst = new ArrayList<NamespaceContextParams>();
+  /**
+   * Declares the empty default namespace of the document.
+   */
+  private void pushDefaultNamespace() {
     NamespaceContextParams ncp = new NamespaceContextParams();
     if (bSequential) {
-      ncp.setNewPrefix(String.format("n%s", 0));
+      ncp.setNewPrefix(SEQUENTIAL_PREFIX + 0);
       ncp.setHasOutput(false);
     }
-    lst.add(ncp);
-    namespaces.put(DEFAULT_NS, lst);
+    namespaces.push(ncp);
+  }
 
-    bStart = true;
-    bEnd = false;
+  /**
+   * Takes over the sequential prefixes of a handler created by
+   * {@link #DOMCanonicalizerHandler(DOMCanonicalizerHandler, CanonicalWriter)}
+   * after it processed the next child nodes. The output of the handler is the
+   * same as the output of this handler if the handler assigned no prefixes, or
+   * if this handler assigned no prefixes since the handler was created. The
+   * metrics of the used output are added to the metrics of this handler.
+   * 
+   * @param fork
+   *          handler of the child nodes
+   * 
+   * @return Returns true if the output of the handler can be used, false if
+   *         the child nodes must be processed again
+   */
+  protected boolean join(DOMCanonicalizerHandler fork) {
+    if (fork.sequentialUriMap.size() != fork.forkedPrefixCount) {
+      if (sequentialUriMap.size() != fork.forkedPrefixCount) {
+        return false;
+      }
+      sequentialUriMap = fork.sequentialUriMap;
+      sequentialUriList = fork.sequentialUriList;
+      sequentialKey = 0;
+      sequentialKeyCount = 0;
+    }
+    fork.metrics.maxNamespaceDepth = fork.namespaces.getMaxSize();
+    metrics.add(fork.metrics);
+    return true;
+  }
+
+  /**
+   * Returns the key of the namespace context of the next node. The canonical
+   * form of an element subtree depends only on the subtree and on the context:
+   * the declarations in scope, their output prefixes and whether they are
+   * output, and the assigned sequential prefixes. The keys of the declarations
+   * and of the prefixes are kept while they are not changed, so only the
+   * changes since the previous key are looked up in the cache.
+   * 
+   * @param cache
+   *          cache of the canonical forms
+   * 
+   * @return Returns the key
+   */
+  protected long getContextKey(CanonicalizationCache cache) {
+    while (sequentialKeyCount < sequentialUriList.size()) {
+      sequentialKey = cache.getSequentialKey(sequentialKey,
+          sequentialUriList.get(sequentialKeyCount++));
+    }
+    return ((long) namespaces.getContextKey(cache) << 32) | sequentialKey;
+  }
+
+  /**
+   * Returns the number of the assigned sequential prefixes.
+   * 
+   * @return Returns the number of prefixes
+   */
+  protected int getSequentialCount() {
+    return sequentialUriMap.size();
+  }
+
+  /**
+   * Returns the URIs of the sequential prefixes assigned after the specified
+   * number of prefixes.
+   * 
+   * @param from
+   *          number of the first prefix
+   * 
+   * @return Returns the URIs in the order of the prefixes
+   */
+  protected String[] getSequentialUris(int from) {
+    List<String> uris = sequentialUriList.subList(from,
+        sequentialUriList.size());
+    return uris.toArray(new String[uris.size()]);
+  }
+
+  /**
+   * Assigns the sequential prefixes of a subtree which output is not
+   * processed again.
+   * 
+   * @param uris
+   *          URIs returned by {@link #getSequentialUris(int)}
+   */
+  protected void addSequentialUris(String[] uris) {
+    for (String uri : uris) {
+      addSequentialUri(uri);
+    }
+  }
+
+  /**
+   * Assigns the next sequential prefix to a namespace URI.
+   * 
+   * @param uri
+   *          namespace URI
+   */
+  private void addSequentialUri(String uri) {
+    sequentialUriMap.put(uri, SEQUENTIAL_PREFIX + sequentialUriMap.size());
+    sequentialUriList.add(uri);
   }
 
   /**
@@ -89,30 +312,31 @@ class DOMCanonicalizerHandler {
    * 
    * @param node
    *          element node
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @throws IOException
    */
-  protected void processElement(Node node) {
+  protected void processElement(Node node, int depth) throws IOException {
     LOGGER.debug("processElement: {}", node);
 
     if (isInExcludeList(node))
       return;
 
-    if (getNodeDepth(node) == 1) {
+    if (depth == 1) {
       bStart = false;
     }
+    metrics.elementCount++;
 
-    List<NamespaceContextParams> outNSList = processNamespaces(node);
+    List<NamespaceContextParams> outNSList = processNamespaces(node, depth);
 
-    StringBuffer output = new StringBuffer();
     String prfx = getNodePrefix(node);
-    NamespaceContextParams ncp = getLastElement(prfx);
-    String localName = getLocalName(node);
-    if (namespaces.containsKey(prfx) && !ncp.getNewPrefix().isEmpty()) {
-      output.append(String.format("<%s:%s", ncp.getNewPrefix(), localName));
-    } else {
-      output.append(String.format("<%s", localName));
-    }
+    NamespaceContextParams ncp = namespaces.get(prfx);
+    writer.write('<');
+    writeName(ncp != null ? ncp.getNewPrefix() : DEFAULT_NS, getLocalName(node));
 
     List<Attribute> outAttrsList = processAttributes(node);
+    metrics.attributeCount += outAttrsList.size();
 
     for (int i = outNSList.size() - 1; i > 0; i--) {
       NamespaceContextParams ncp1 = outNSList.get(i);
@@ -126,66 +350,57 @@ class DOMCanonicalizerHandler {
       }
     }
 
+    if (!outNSList.isEmpty()) {
+      ncp = namespaces.getForUpdate(prfx, depth);
+    }
     for (NamespaceContextParams namespace : outNSList) {
       if ((prfx.equals(namespace.getPrefix()) && !ncp.getNewPrefix().equals(
           namespace.getNewPrefix()))
-          || outputNSInParent(namespace.getPrefix())) {
+          || outputNSInParent(namespace.getPrefix(), depth)) {
         ncp.setHasOutput(false);
         continue;
       }
       ncp.setHasOutput(true);
+      metrics.namespaceDeclarationCount++;
       String nsName = namespace.getNewPrefix();
-      String nsUri = namespace.getUri();
+      writer.write(' ');
       if (!nsName.equals(DEFAULT_NS)) {
-        output.append(String.format(" %s:%s=\"%s\"", NS, nsName, nsUri));
+        writeName(NS, nsName);
       } else {
-        output.append(String.format(" %s=\"%s\"", NS, nsUri));
+        writer.write(NS);
       }
+      writeValue(namespace.getUri(), false);
     }
 
     for (Attribute attribute : outAttrsList) {
       String attrPrfx = attribute.getPrefix();
       String attrName = attribute.getLocalName();
       String attrValue = attribute.getValue();
+      writer.write(' ');
       if (!bSequential) {
-        if (!attrPrfx.equals(DEFAULT_NS)) {
-          output.append(String.format(" %s:%s=\"%s\"", attrPrfx, attrName,
-              attrValue));
-        } else {
-          output.append(String.format(" %s=\"%s\"", attrName, attrValue));
-        }
+        writeName(attrPrfx, attrName);
       } else {
-        if (parameters.getQnameAwareAttributes().size() > 0) {
-          if (namespaces.containsKey(attrPrfx)) {
-            NamespaceContextParams attrPrfxNcp = getLastElement(attrPrfx);
-            for (QNameAwareParameter en : parameters.getQnameAwareAttributes()) {
-              if (attrName.equals(en.getName())
-                  && en.getNs().equals(attrPrfxNcp.getUri())) {
-                int idx = attrValue.indexOf(C);
-                if (idx > -1) {
-                  String attr_value_prfx = attrValue.substring(0, idx);
-                  if (namespaces.containsKey(attr_value_prfx)) {
-                    attrValue = getLastElement(attr_value_prfx).getNewPrefix()
-                        + C + attrValue.substring(idx + 1);
-                  }
-                }
-              }
+        if (!qnameAwareAttributes.isEmpty()
+            && qnameAwareAttributes.contains(getUri(attrPrfx), attrName)) {
+          int idx = attrValue.indexOf(C);
+          if (idx > -1) {
+            String attr_value_prfx = attrValue.substring(0, idx);
+            if (namespaces.contains(attr_value_prfx)) {
+              attrValue = namespaces.get(attr_value_prfx).getNewPrefix() + C
+                  + attrValue.substring(idx + 1);
             }
           }
         }
-        String attrNewPrfx = attribute.getNewPrefix();
-        if (!attrPrfx.equals("")) {
-          output.append(String.format(" %s:%s=\"%s\"", attrNewPrfx, attrName,
-              attrValue));
-        } else {
-          output.append(String.format(" %s=\"%s\"", attrName, attrValue));
+        if (!attrPrfx.equals(DEFAULT_NS)) {
+          writer.write(attribute.getNewPrefix());
+          writer.write(':');
         }
+        writer.write(attrName);
       }
+      writeValue(attrValue, true);
     }
 
-    output.append(">");
-
-    StringUtils.join(outputBuffer,output);
+    writer.write('>');
   }
 
   /**
@@ -193,28 +408,26 @@ class DOMCanonicalizerHandler {
    * 
    * @param node
    *          element node
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @throws IOException
    */
-  protected void processEndElement(Node node) {
+  protected void processEndElement(Node node, int depth) throws IOException {
     if (isInExcludeList(node))
       return;
 
-    StringBuffer output = new StringBuffer();
-    String prfx = getNodePrefix(node);
-    NamespaceContextParams ncp = getLastElement(prfx);
-    String localName = getLocalName(node);
-    if (namespaces.containsKey(prfx) && !ncp.getNewPrefix().isEmpty()) {
-      output.append(String.format("</%s:%s>", ncp.getNewPrefix(), localName));
-    } else {
-      output.append(String.format("</%s>", localName));
-    }
+    NamespaceContextParams ncp = namespaces.get(getNodePrefix(node));
+    writer.write('<');
+    writer.write('/');
+    writeName(ncp != null ? ncp.getNewPrefix() : DEFAULT_NS, getLocalName(node));
+    writer.write('>');
 
-    removeNamespaces(node);
+    removeNamespaces(depth);
 
-    if (getNodeDepth(node) == 1) {
+    if (depth == 1) {
       bEnd = true;
     }
-
-    StringUtils.join(outputBuffer,output);
   }
 
   /**
@@ -222,38 +435,22 @@ class DOMCanonicalizerHandler {
    * 
    * @param node
    *          text node
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @throws IOException
    */
-
-  protected void processText(Node node) {
+  protected void processText(Node node, int depth) throws IOException {
     LOGGER.debug("processText: {}", node);
-    if (getNodeDepth(node) < 2) {
+    if (depth < 2) {
       return;
     }
 
     String text = node.getNodeValue() != null ? node.getNodeValue() : "";
+    int start = 0;
+    int end = text.length();
 
-    StringBuffer value = new StringBuffer(text.length());
-    for (int i = 0; i < text.length(); i++) {
-      char codepoint = text.charAt(i);
-      if (codepoint == '&') {
-        value.append(AMP);
-      }
-      else if (codepoint == '<') {
-        value.append(LT);
-      }
-      else if (codepoint == '>') {
-        value.append(GT);
-      }
-      else if (codepoint == 0xd) {
-        value.append(XD);
-      }
-      else {
-        value.append(codepoint);
-      }
-    }
-    text = value.toString();
-
-    if (parameters.isTrimTextNodes()) {
+    if (profile.isTrimTextNodes()) {
       boolean b = true;
       NamedNodeMap attrs = node.getParentNode().getAttributes();
       for (int ai = 0; ai < attrs.getLength(); ai++) {
@@ -268,75 +465,96 @@ class DOMCanonicalizerHandler {
         }
       }
       if (b) {
-        text = StringUtils.trim(text);
+        while (start < end && isTrimmed(text.charAt(start))) {
+          start++;
+        }
+        while (end > start && isTrimmed(text.charAt(end - 1))) {
+          end--;
+        }
       }
     }
 
-    if (parameters.getQnameAwareElements().size() > 0 && bSequential) {
-      if (text.startsWith(XSD + C)) {
-        if (namespaces.containsKey(XSD)) {
+    if (!qnameAwareElements.isEmpty() && bSequential) {
+      if (text.startsWith(XSD + C, start)) {
+        if (namespaces.contains(XSD)) {
+          text = text.substring(start, end);
+          start = 0;
           Node prntNode = node.getParentNode();
-          String nodeName = getLocalName(prntNode);
-          String nodePrefix = getNodePrefix(prntNode);
-          NamespaceContextParams ncp = getLastElement(XSD);
-          NamespaceContextParams attrPrfxNcp = getLastElement(nodePrefix);
-          for (QNameAwareParameter en : parameters.getQnameAwareElements()) {
-            if (nodeName.equals(en.getName())
-                && en.getNs().equals(attrPrfxNcp.getUri())) {
-              text = StringUtils.join(ncp.getNewPrefix(), StringUtils.substring(text, XSD.length()));
-            }
+          if (qnameAwareElements.contains(getUri(getNodePrefix(prntNode)),
+              getLocalName(prntNode))) {
+            NamespaceContextParams ncp = namespaces.get(XSD);
+            text = StringUtils.join(ncp.getNewPrefix(), StringUtils.substring(text, XSD.length()));
           }
+          end = text.length();
         }
       }
     }
-    if (parameters.getQnameAwareXPathElements().size() > 0 && bSequential
-        && node.getParentNode().getChildNodes().getLength() == 1) {
+    // the rewritten XPath expression is output as is
+    String xpathText = null;
+    if (!qnameAwareXPathElements.isEmpty() && bSequential
+        && hasSingleChild(node.getParentNode())) {
       Node prntNode = node.getParentNode();
-      String nodeName = getLocalName(prntNode);
-      String nodePrefix = getNodePrefix(prntNode);
-      String nodeText = node.getTextContent();
-      NamespaceContextParams ncp = getLastElement(nodePrefix);
-      for (QNameAwareParameter en : parameters.getQnameAwareXPathElements()) {
-        if (nodeName.equals(en.getName()) && ncp.getUri().equals(en.getNs())) {
-          NSContext nsContext = xpathesNsMap.get(nodeText);
-          List<String> xpathNs = nsContext.getXpathNs();
-          StringBuffer sb = new StringBuffer(nodeText.length());
-          int baseTextIdx = 0;
-          if (xpathNs.size() > 0) {
-            Iterator<String> it = xpathNs.iterator();
-            String ns = it.next();
-            ObjectVector words = nsContext.getWords();
-            for (int i = 0; i < words.size(); i++) {
-              Object obj = words.elementAt(i);
-              String word = obj.toString();
-              int idx = StringUtils.indexOf(nodeText, word, baseTextIdx);
-              if (idx != baseTextIdx) {
-                sb.append(StringUtils.substring(nodeText, baseTextIdx, idx));
-                baseTextIdx = idx;
-              }
-              if (!(obj instanceof XString)
-                  && ns.equals(word)
-                  && (i != words.size() - 1 && C.equals(words.elementAt(i + 1)))) {
-                sb.append(getLastElement(word).getNewPrefix());
-                baseTextIdx += word.length();
-                if (it.hasNext())
-                  ns = it.next();
-                else {
-                  sb.append(StringUtils.substring(nodeText, baseTextIdx));
-                  break;
-                }
-              } else {
-                sb.append(word);
-                baseTextIdx += word.length();
+      if (qnameAwareXPathElements.contains(getUri(getNodePrefix(prntNode)),
+          getLocalName(prntNode))) {
+        String nodeText = node.getTextContent();
+        NSContext nsContext = prntNode == xpathElement ? xpathContext
+            : XPathCache.getInstance().get(nodeText, metrics);
+        StringBuffer sb = new StringBuffer(nodeText.length());
+        int baseTextIdx = 0;
+        if (nsContext != null && nsContext.getXpathNs().size() > 0) {
+          Iterator<String> it = nsContext.getXpathNs().iterator();
+          String ns = it.next();
+          ObjectVector words = nsContext.getWords();
+          for (int i = 0; i < words.size(); i++) {
+            Object obj = words.elementAt(i);
+            String word = obj.toString();
+            int idx = StringUtils.indexOf(nodeText, word, baseTextIdx);
+            if (idx != baseTextIdx) {
+              sb.append(StringUtils.substring(nodeText, baseTextIdx, idx));
+              baseTextIdx = idx;
+            }
+            if (!(obj instanceof XString)
+                && ns.equals(word)
+                && (i != words.size() - 1 && C.equals(words
+                    .elementAt(i + 1)))) {
+              sb.append(namespaces.get(word).getNewPrefix());
+              baseTextIdx += word.length();
+              if (it.hasNext())
+                ns = it.next();
+              else {
+                sb.append(StringUtils.substring(nodeText, baseTextIdx));
+                break;
               }
+            } else {
+              sb.append(word);
+              baseTextIdx += word.length();
             }
-            text = sb.toString();
           }
+          xpathText = sb.toString();
         }
       }
     }
 
-    StringUtils.join(outputBuffer,text);
+    long byteCount = writer.getByteCount();
+    if (xpathText != null) {
+      writer.write(xpathText);
+    } else {
+      writer.writeText(text, start, end);
+    }
+    metrics.textByteCount += writer.getByteCount() - byteCount;
+  }
+
+  /**
+   * Returns whether a character is removed by trimming of a text node. Carriage
+   * return is output as a character reference, so it is not trimmed.
+   * 
+   * @param c
+   *          character
+   * 
+   * @return Returns true if the character is whitespace, false - otherwise
+   */
+  private static boolean isTrimmed(char c) {
+    return c <= ' ' && c != '\r';
   }
 
   /**
@@ -344,22 +562,31 @@ class DOMCanonicalizerHandler {
    * 
    * @param node
    *          process instruction node
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @throws IOException
    */
-  protected void processPI(Node node) {
+  protected void processPI(Node node, int depth) throws IOException {
     LOGGER.debug("processPI: {}", node);
     String nodeName = node.getNodeName();
     String nodeValue = node.getNodeValue() != null ? node.getNodeValue() : "";
 
-    StringBuffer output = new StringBuffer();
-    if (bEnd && getNodeDepth(node) == 1) {
-      output.append("\n");
+    if (bEnd && depth == 1) {
+      writer.write('\n');
     }
-    output.append(String.format("<?%s%s?>", nodeName,
-        !nodeValue.isEmpty() ? (" " + nodeValue) : ""));
-    if (bStart && getNodeDepth(node) == 1) {
-      output.append("\n");
+    writer.write('<');
+    writer.write('?');
+    writer.write(nodeName);
+    if (!nodeValue.isEmpty()) {
+      writer.write(' ');
+      writer.write(nodeValue);
+    }
+    writer.write('?');
+    writer.write('>');
+    if (bStart && depth == 1) {
+      writer.write('\n');
     }
-    StringUtils.join(outputBuffer,output);
   }
 
   /**
@@ -367,22 +594,25 @@ class DOMCanonicalizerHandler {
    * 
    * @param node
    *          comment node
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @throws IOException
    */
-  protected void processComment(Node node) {
+  protected void processComment(Node node, int depth) throws IOException {
     LOGGER.debug("processComment: {}", node);
-    if (parameters.isIgnoreComments())
+    if (profile.isIgnoreComments())
       return;
 
-    StringBuffer output = new StringBuffer();
-    if (bEnd && getNodeDepth(node) == 1) {
-      output.append("\n");
+    if (bEnd && depth == 1) {
+      writer.write('\n');
     }
-    output.append(String.format("<!--%s-->", node.getNodeValue()));
-    if (bStart && getNodeDepth(node) == 1) {
-      output.append("\n");
+    writer.write(COMMENT_START);
+    writer.write(node.getNodeValue());
+    writer.write(COMMENT_END);
+    if (bStart && depth == 1) {
+      writer.write('\n');
     }
-    StringUtils.join(outputBuffer,output);
-
   }
 
   /**
@@ -390,22 +620,17 @@ class DOMCanonicalizerHandler {
    * 
    * @param node
    *          CDATA node
+   * 
+   * @throws IOException
    */
-  protected void processCData(Node node) {
+  protected void processCData(Node node) throws IOException {
     LOGGER.debug("processCData:" + node);
-    StringUtils.join(outputBuffer,processText(node.getNodeValue(), false));
+    long byteCount = writer.getByteCount();
+    writer.writeCData(node.getNodeValue());
+    metrics.textByteCount += writer.getByteCount() - byteCount;
 
   }
 
-  /**
-   * Returns an output buffer.
-   * 
-   * @return Returns an output buffer
-   */
-  protected StringBuffer getOutputBlock() {
-    return outputBuffer;
-  }
-
   /**
    * Returns whether a node in the exclusion list.
    * 
@@ -416,31 +641,65 @@ class DOMCanonicalizerHandler {
    *         otherwise
    */
   protected boolean isInExcludeList(Node node) {
-    if (excludeList != null
-        && excludeList.contains(node)
-        && (node.getNodeType() == Node.ELEMENT_NODE || node instanceof Attr)
-        && !(node instanceof Attr && (NS.equals(getNodePrefix(node)) || XML
-            .equals(getNodePrefix(node)))))
+    if (excludeSet != null && excludeSet.contains(node))
       return true;
-    return false;
+    return filter != null && node instanceof Attr && isRejected(node);
+  }
+
+  /**
+   * Sets the filter of the attributes. The attributes (except namespace
+   * declarations and "xml:" attributes) rejected by the filter are excluded
+   * from the output, as if they were in the exclusion list.
+   * 
+   * @param filter
+   *          node filter, or null
+   */
+  protected void setFilter(NodeFilter filter) {
+    this.filter = filter;
   }
 
   /**
-   * Returns a depth of a node in the DOM tree.
+   * Returns whether an attribute is rejected by the filter.
    * 
    * @param node
-   *          DOM node
+   *          attribute node
    * 
-   * @return Returns a depth
+   * @return Returns true if the attribute is excluded, false - otherwise
    */
-  protected int getNodeDepth(Node node) {
-    int i = -1;
-    Node prnt = node;
-    do {
-      i++;
-      prnt = prnt.getParentNode();
-    } while (prnt != null);
-    return i;
+  private boolean isRejected(Node node) {
+    String prfx = getNodePrefix(node);
+    return !NS.equals(prfx) && !XML.equals(prfx)
+        && filter.acceptNode(node) == NodeFilter.FILTER_REJECT;
+  }
+
+  /**
+   * Creates a set of nodes which are excluded from the output. Only elements
+   * and attributes (except namespace declarations and "xml:" attributes) are
+   * excluded, other nodes of the exclusion list are ignored. The set is
+   * compared by identity, so a lookup takes constant time.
+   * 
+   * @param excludeList
+   *          exclusion list
+   * 
+   * @return Returns a set of excluded nodes, or null if nothing is excluded
+   */
+  private Set<Node> createExcludeSet(List<Node> excludeList) {
+    if (excludeList == null || excludeList.isEmpty())
+      return null;
+    Set<Node> set = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>(
+        excludeList.size()));
+    for (Node node : excludeList) {
+      if (node == null)
+        continue;
+      if (node.getNodeType() == Node.ELEMENT_NODE) {
+        set.add(node);
+      } else if (node instanceof Attr) {
+        String prfx = getNodePrefix(node);
+        if (!NS.equals(prfx) && !XML.equals(prfx))
+          set.add(node);
+      }
+    }
+    return set.isEmpty() ? null : set;
   }
 
   /**
@@ -448,51 +707,62 @@ class DOMCanonicalizerHandler {
    * 
    * @param prfx
    *          prefix
+   * @param depth
+   *          depth of the node in the DOM tree
    * 
    * @return Returns true if a prefix there is in parent output, false -
    *         otherwise
    */
-  private boolean outputNSInParent(String prfx) {
-    for (Entry<String, List<NamespaceContextParams>> en : namespaces.entrySet()) {
-      if (!bSequential && !prfx.equals(en.getKey()))
-        continue;
-      List<NamespaceContextParams> lst = en.getValue();
-      if (lst.size() > 1) {
-        NamespaceContextParams last = getLastElement(prfx);
-        for (int i = 2; i <= lst.size(); i++) {
-          NamespaceContextParams prev = getLastElement(en.getKey(), -i);
-          if (last.getNewPrefix().equals(prev.getNewPrefix())) {
-            if (!bSequential && !last.getUri().equals(prev.getUri()))
-              return false;
-            else if (prev.isHasOutput() == null || prev.isHasOutput())
-              return true;
-          }
-        }
-      }
+  private boolean outputNSInParent(String prfx, int depth) {
+    NamespaceContextParams last = namespaces.get(prfx);
+    if (!bSequential) {
+      return outputNSInParent(last, prfx, depth);
+    }
+    for (int i = 0; i < namespaces.getPrefixCount(); i++) {
+      if (outputNSInParent(last, namespaces.getPrefix(i), depth))
+        return true;
     }
     return false;
   }
 
   /**
-   * Remove unused namespaces from the stack.
+   * Returns whether the overridden declarations of a prefix contain the output
+   * of a declaration.
    * 
-   * @param node
-   *          DOM node
+   * @param last
+   *          current declaration
+   * @param key
+   *          prefix whose declarations of the parents are checked
+   * @param depth
+   *          depth of the node in the DOM tree
+   * 
+   * @return Returns true if the declaration there is in parent output, false -
+   *         otherwise
    */
-  private void removeNamespaces(Node node) {
-    int nDepth = getNodeDepth(node);
-    for (Iterator<Map.Entry<String, List<NamespaceContextParams>>> it = namespaces.entrySet().iterator(); it.hasNext(); ) {
-      Map.Entry<String, List<NamespaceContextParams>> entry = it.next();
-      List<NamespaceContextParams> nsLevels = entry.getValue();
-      while (!nsLevels.isEmpty() &&
-             nsLevels.get(nsLevels.size() - 1).getDepth() >= nDepth) {
-
-        nsLevels.remove(nsLevels.size() - 1);
-      }
-      if (nsLevels.isEmpty()) {
-        it.remove();
+  private boolean outputNSInParent(NamespaceContextParams last, String key,
+      int depth) {
+    NamespaceContextParams prev = namespaces.get(key);
+    if (prev.getDepth() == depth)
+      prev = prev.getPrevious();
+    for (; prev != null; prev = prev.getPrevious()) {
+      if (last.getNewPrefix().equals(prev.getNewPrefix())) {
+        if (!bSequential && !last.getUri().equals(prev.getUri()))
+          return false;
+        else if (prev.isHasOutput() == null || prev.isHasOutput())
+          return true;
       }
     }
+    return false;
+  }
+
+  /**
+   * Remove unused namespaces from the stack.
+   * 
+   * @param nDepth
+   *          depth of the node in the DOM tree
+   */
+  private void removeNamespaces(int nDepth) {
+    namespaces.pop(nDepth);
   }
 
   /**
@@ -503,150 +773,229 @@ class DOMCanonicalizerHandler {
    * 
    * @return Returns a list of output attributes
    */
-  private List<Attribute> processAttributes(final Node node) {
+  private List<Attribute> processAttributes(Node node) {
     List<Attribute> outAttrsList = new ArrayList<Attribute>();
 
-    for (int ai = 0; ai < node.getAttributes().getLength(); ai++) {
-      Node attr = node.getAttributes().item(ai);
+    NamedNodeMap attrs = node.getAttributes();
+    for (int ai = 0; ai < attrs.getLength(); ai++) {
+      Node attr = attrs.item(ai);
       if (isInExcludeList(attr))
         continue;
 
       String prfx = getNodePrefix(attr);
-      String localName = getLocalName(attr);
       if (!NS.equals(prfx)
           && !(DEFAULT_NS.equals(prfx) && NS.equals(attr.getNodeName()))) {
         Attribute attribute = new Attribute();
         attribute.setPrefix(prfx);
-        attribute.setLocalName(localName);
+        attribute.setLocalName(getLocalName(attr));
         attribute.setValue(attr.getNodeValue() != null ? attr.getNodeValue()
             : "");
-        if (!attribute.getPrefix().isEmpty()
-            && namespaces.containsKey(attribute.getPrefix())) {
-          attribute.setNewPrefix(getLastElement(attribute.getPrefix())
-              .getNewPrefix());
+        NamespaceContextParams ncp = namespaces.get(prfx);
+        if (!prfx.isEmpty() && ncp != null) {
+          attribute.setNewPrefix(ncp.getNewPrefix());
         } else {
-          attribute.setNewPrefix(attribute.getPrefix());
+          attribute.setNewPrefix(prfx);
         }
-
-        attribute.setValue(processText(attribute.getValue(), true));
-        StringBuffer value = new StringBuffer();
-        for (int i = 0; i < attribute.getValue().length(); i++) {
-          char codepoint = attribute.getValue().charAt(i);
-          if (codepoint == 9 || codepoint == 10 || codepoint == 13) {
-            value.append(String.format(CF, Integer.toHexString(codepoint)
-                .toUpperCase()));
-          } else {
-            value.append(codepoint);
-          }
+        // the sort key is resolved once per attribute
+        if (XML.equals(prfx)) {
+          attribute.setUri(String.valueOf(node.lookupNamespaceURI(XML)));
+        } else {
+          attribute.setUri(ncp != null ? ncp.getUri() : "");
         }
-        attribute.setValue(value.toString());
 
         outAttrsList.add(attribute);
       }
     }
 
-    Collections.sort(outAttrsList, new Comparator<Attribute>() {
-      public int compare(Attribute x, Attribute y) {
-        String x_uri, y_uri;
-        if (XML.equals(x.getPrefix())) {
-          x_uri = node.lookupNamespaceURI(XML);
-        } else {
-          NamespaceContextParams x_stack = getLastElement(x.getPrefix());
-          x_uri = x_stack != null ? x_stack.getUri() : "";
-        }
-        if (XML.equals(y.getPrefix())) {
-          y_uri = node.lookupNamespaceURI(XML);
-        } else {
-          NamespaceContextParams y_stack = getLastElement(y.getPrefix());
-          y_uri = y_stack != null ? y_stack.getUri() : "";
-        }
-        return String.format("%s:%s", x_uri, x.getLocalName()).compareTo(
-            String.format("%s:%s", y_uri, y.getLocalName()));
-      }
-    });
+    if (outAttrsList.size() > 1) {
+      Collections.sort(outAttrsList, ATTRIBUTE_ORDER);
+    }
 
     return outAttrsList;
   }
 
+  /**
+   * Compares the qualified names of attributes in the form "uri:localName"
+   * without building the strings.
+   * 
+   * @param uri1
+   *          namespace URI of the first attribute
+   * @param name1
+   *          local name of the first attribute
+   * @param uri2
+   *          namespace URI of the second attribute
+   * @param name2
+   *          local name of the second attribute
+   * 
+   * @return Returns a negative integer, zero, or a positive integer as the
+   *         first name is less than, equal to, or greater than the second
+   */
+  private static int compareNames(String uri1, String name1, String uri2,
+      String name2) {
+    if (uri1.equals(uri2)) {
+      return name1.compareTo(name2);
+    }
+    int len1 = uri1.length() + 1 + name1.length();
+    int len2 = uri2.length() + 1 + name2.length();
+    int len = Math.min(len1, len2);
+    for (int i = 0; i < len; i++) {
+      char c1 = getNameChar(uri1, name1, i);
+      char c2 = getNameChar(uri2, name2, i);
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+    }
+    return len1 - len2;
+  }
+
+  /**
+   * Returns a character of the qualified name in the form "uri:localName".
+   * 
+   * @param uri
+   *          namespace URI
+   * @param name
+   *          local name
+   * @param idx
+   *          index of the character
+   * 
+   * @return Returns the character
+   */
+  private static char getNameChar(String uri, String name, int idx) {
+    int len = uri.length();
+    if (idx < len) {
+      return uri.charAt(idx);
+    }
+    return idx == len ? ':' : name.charAt(idx - len - 1);
+  }
+
   /**
    * Prosessing of namespace attributes.
    * 
    * @param node
    *          DOM node
+   * @param depth
+   *          depth of the node in the DOM tree
    * 
    * @return Returns a list of output namespace attributes
    */
-  private List<NamespaceContextParams> processNamespaces(Node node) {
-    addNamespaces(node);
+  private List<NamespaceContextParams> processNamespaces(Node node, int depth) {
+    addNamespaces(node, depth);
 
-    List<NamespaceContextParams> outNSList = new ArrayList<NamespaceContextParams>();
+    outNSList.clear();
 
     String nPrefix = getNodePrefix(node);
 
     String childText = null;
-    if (parameters.getQnameAwareElements().size() > 0 ||
-        (parameters.getQnameAwareXPathElements().size() > 0 &&
-      node.getChildNodes().getLength() == 1)) {
+    if (!qnameAwareElements.isEmpty() ||
+        (!qnameAwareXPathElements.isEmpty() &&
+      hasSingleChild(node))) {
 
       childText = node.getTextContent();
     }
 
-    int depth = getNodeDepth(node);
-    for (String prefix : namespaces.keySet()) {
-      NamespaceContextParams ncp = getLastElement(prefix);
-      if (ncp.getDepth() != depth) {
-        NamespaceContextParams entry = ncp.clone();
-        if (entry.isHasOutput() != null && depth > 0)
-          entry.setHasOutput(false);
-        entry.setDepth(depth);
-        namespaces.get(prefix).add(entry);
-        ncp = entry;
+    // the expression is looked up once and shared with the text of the node
+    NSContext nsContext = null;
+    if (!qnameAwareXPathElements.isEmpty()
+        && hasSingleChild(node)
+        && qnameAwareXPathElements.contains(getUri(nPrefix), getLocalName(node))) {
+      nsContext = XPathCache.getInstance().get(childText, metrics);
+    }
+    xpathElement = node;
+    xpathContext = nsContext;
+
+    // only the prefixes which are used by the node can be visible
+    addVisibleNamespace(node, nPrefix, childText, nsContext, nPrefix, depth);
+    if (!qnameAwareElements.isEmpty()) {
+      int idx = childText.indexOf(C);
+      if (idx > -1) {
+        addVisibleNamespace(node, childText.substring(0, idx), childText,
+            nsContext, nPrefix, depth);
       }
-      if (ncp.isHasOutput() != null && !ncp.isHasOutput()) {
-        if (isPrefixVisible(node, prefix, childText, nPrefix)) {
-          NamespaceContextParams entry = ncp.clone();
-          entry.setPrefix(prefix);
-          outNSList.add(entry);
-        } else
-          continue;
-        ncp.setHasOutput(true);
+    }
+    if (nsContext != null) {
+      for (String prefix : nsContext.getXpathNs()) {
+        addVisibleNamespace(node, prefix, childText, nsContext, nPrefix, depth);
+      }
+    }
+    NamedNodeMap attrs = node.getAttributes();
+    for (int ai = 0; ai < attrs.getLength(); ai++) {
+      Node attr = attrs.item(ai);
+      String attrPrfx = getNodePrefix(attr);
+      if (!attrPrfx.isEmpty()) {
+        addVisibleNamespace(node, attrPrfx, childText, nsContext, nPrefix,
+            depth);
+      }
+      if (!qnameAwareAttributes.isEmpty()) {
+        String attrValue = attr.getNodeValue();
+        int idx = attrValue.indexOf(C);
+        if (idx > -1) {
+          addVisibleNamespace(node, attrValue.substring(0, idx), childText,
+              nsContext, nPrefix, depth);
+        }
       }
     }
 
     if (bSequential) {
-      Collections.sort(outNSList, new Comparator<NamespaceContextParams>() {
-        public int compare(NamespaceContextParams x, NamespaceContextParams y) {
-          return x.getUri().compareTo(y.getUri());
-        }
-      });
+      if (outNSList.size() > 1) {
+        Collections.sort(outNSList, URI_ORDER);
+      }
 
       for (NamespaceContextParams entry : outNSList) {
-        NamespaceContextParams ncp = getLastElement(entry.getPrefix());
         if (!sequentialUriMap.containsKey(entry.getUri()))
-          sequentialUriMap.put(entry.getUri(),
-              String.format("n%s", sequentialUriMap.size()));
+          addSequentialUri(entry.getUri());
         entry.setNewPrefix(sequentialUriMap.get(entry.getUri()));
-        ncp.setNewPrefix(entry.getNewPrefix());
       }
-    } else {
-      Collections.sort(outNSList, new Comparator<NamespaceContextParams>() {
-        public int compare(NamespaceContextParams x, NamespaceContextParams y) {
-          return x.getPrefix().compareTo(y.getPrefix());
-        }
-      });
+    } else if (outNSList.size() > 1) {
+      Collections.sort(outNSList, PREFIX_ORDER);
     }
     return outNSList;
   }
 
+  /**
+   * Adds the declaration of a prefix to the output namespaces of the node if
+   * the prefix is visible and the declaration is not output by the node yet.
+   * The declaration of a parent is copied to the node only in this case.
+   * 
+   * @param node
+   *          DOM node
+   * @param prefix
+   *          prefix
+   * @param childText
+   *          text content of the node, or null
+   * @param nsContext
+   *          parsed XPath expression of the node, or null
+   * @param nPrefix
+   *          prefix of the node
+   * @param depth
+   *          depth of the node in the DOM tree
+   */
+  private void addVisibleNamespace(Node node, String prefix, String childText,
+      NSContext nsContext, String nPrefix, int depth) {
+    NamespaceContextParams ncp = namespaces.get(prefix);
+    if (ncp == null)
+      return;
+    Boolean hasOutput = ncp.isHasOutput();
+    if (hasOutput == null || (ncp.getDepth() == depth && hasOutput))
+      return;
+    if (!isPrefixVisible(node, prefix, childText, nsContext, nPrefix))
+      return;
+    ncp = namespaces.getForUpdate(prefix, depth);
+    ncp.setHasOutput(true);
+    outNSList.add(ncp);
+  }
+
   /**
    * Add namespaces to stack.
    * 
    * @param node
    *          DOM node
+   * @param depth
+   *          depth of the node in the DOM tree
    */
-  private void addNamespaces(Node node) {
-    for (int ni = 0; ni < node.getAttributes().getLength(); ni++) {
-      Node attr = node.getAttributes().item(ni);
+  private void addNamespaces(Node node, int depth) {
+    NamedNodeMap attrs = node.getAttributes();
+    for (int ni = 0; ni < attrs.getLength(); ni++) {
+      Node attr = attrs.item(ni);
       if (isInExcludeList(attr))
         continue;
       String prefix = getLocalName(attr);
@@ -660,20 +1009,11 @@ class DOMCanonicalizerHandler {
 
         String uri = attr.getNodeValue();
 
-        List<NamespaceContextParams> stack = namespaces.get(prefix);
-        if (stack != null && uri.equals(getLastElement(prefix).getUri()))
+        NamespaceContextParams current = namespaces.get(prefix);
+        if (current != null && uri.equals(current.getUri()))
           continue;
 
-        if (!namespaces.containsKey((prefix))) {
-          namespaces.put(prefix, new ArrayList<NamespaceContextParams>());
-        }
-        NamespaceContextParams nsp = new NamespaceContextParams(uri, false,
-            prefix, getNodeDepth(node));
-        if (namespaces.get(prefix).size() == 0
-            || getNodeDepth(node) != getLastElement(prefix).getDepth())
-          namespaces.get(prefix).add(nsp);
-        else
-          namespaces.get(prefix).set(namespaces.get(prefix).size() - 1, nsp);
+        namespaces.declare(prefix, uri, depth);
       }
     }
   }
@@ -685,82 +1025,55 @@ class DOMCanonicalizerHandler {
    *          DOM node
    * @param prefix
    *          prefix
+   * @param childText
+   *          text content of the node, or null
+   * @param nsContext
+   *          parsed XPath expression of the node, or null
+   * @param nPrefix
+   *          prefix of the node
    * 
    * @return Returns true if prefix is shown in the output of the node, false -
    *         otherwise.
    */
-  private boolean isPrefixVisible(Node node, String prefix, String childText, String nPrefix) {
+  private boolean isPrefixVisible(Node node, String prefix, String childText,
+      NSContext nsContext, String nPrefix) {
 
     if (nPrefix.equals(prefix)) {
       return true;
     }
 
     String nodeLocalName = getLocalName(node);
-    if (parameters.getQnameAwareElements().size() > 0) {
-      NamespaceContextParams ncp = getLastElement(prefix);
+    if (!qnameAwareElements.isEmpty()) {
+      NamespaceContextParams ncp = namespaces.get(prefix);
       String prfx = ncp.getPrefix();
       if (childText == null) {
         childText = node.getTextContent();
       }
       if (childText != null && childText.startsWith(prfx + C)
-          && node.getChildNodes().getLength() == 1) {
-        NamespaceContextParams attrPrfxNcp = getLastElement(nPrefix);
-        for (QNameAwareParameter en : parameters.getQnameAwareElements()) {
-          if (nodeLocalName.equals(en.getName())
-              && en.getNs().equals(attrPrfxNcp.getUri())) {
-            return true;
-          }
-        }
+          && hasSingleChild(node)
+          && qnameAwareElements.contains(getUri(nPrefix), nodeLocalName)) {
+        return true;
       }
     }
-    if (parameters.getQnameAwareXPathElements().size() > 0
-        && node.getChildNodes().getLength() == 1) {
-      NamespaceContextParams ncp = getLastElement(nPrefix);
-      if (childText == null) {
-        childText = node.getTextContent();
-      }
-      for (QNameAwareParameter en : parameters.getQnameAwareXPathElements()) {
-        if (nodeLocalName.equals(en.getName())
-            && ncp.getUri().equals(en.getNs())) {
-          NSContext nsContext = xpathesNsMap.get(childText);
-          try {
-            if (nsContext == null) {
-              nsContext = new NSContext();
-              XPathParser xpathParser = new XPathParser(null, null);
-              org.apache.xpath.compiler.Compiler xpathCompiler = new org.apache.xpath.compiler.Compiler();
-              xpathParser.initXPath(xpathCompiler, childText, nsContext);
-              xpathesNsMap.put(childText, nsContext);
-              nsContext.setWords(xpathCompiler.getTokenQueue());
-            }
-            if (nsContext.getXpathNs().contains(prefix))
-              return true;
-          } catch (Exception e) {
-            LOGGER.error(e.getMessage(), e);
-          }
-        }
-      }
+    if (nsContext != null && nsContext.getXpathNs().contains(prefix)) {
+      return true;
     }
 
-    NamespaceContextParams ncp = getLastElement(prefix);
+    NamespaceContextParams ncp = namespaces.get(prefix);
     String prfx = ncp.getPrefix();
-    for (int ai = 0; ai < node.getAttributes().getLength(); ai++) {
-      Node attr = node.getAttributes().item(ai);
+    NamedNodeMap attrs = node.getAttributes();
+    for (int ai = 0; ai < attrs.getLength(); ai++) {
+      Node attr = attrs.item(ai);
       String attrPrfx = getNodePrefix(attr);
       if (!attrPrfx.isEmpty() && attrPrfx.equals(prefix)) {
         return true;
       }
-      if (parameters.getQnameAwareAttributes().size() > 0) {
+      if (!qnameAwareAttributes.isEmpty()) {
         String attrValue = attr.getNodeValue();
-        if (attrValue.startsWith(prfx + C)) {
-          String attrLocalName = getLocalName(attr);
-          String attrPrefix = getNodePrefix(attr);
-          NamespaceContextParams attrPrfxNcp = getLastElement(attrPrefix);
-          for (QNameAwareParameter en : parameters.getQnameAwareAttributes()) {
-            if (attrLocalName.equals(en.getName())
-                && en.getNs().equals(attrPrfxNcp.getUri())) {
-              return true;
-            }
-          }
+        if (attrValue.startsWith(prfx + C)
+            && qnameAwareAttributes.contains(getUri(attrPrfx),
+                getLocalName(attr))) {
+          return true;
         }
       }
     }
@@ -769,27 +1082,70 @@ class DOMCanonicalizerHandler {
   }
 
   /**
-   * Replace special characters.
+   * Returns whether a node has exactly one child node. The siblings are
+   * followed instead of the list of child nodes, since the list is not safe to
+   * read from several threads.
    * 
-   * @param text
-   *          input text
-   * @param bAttr
-   *          true if text is attribute value
+   * @param node
+   *          DOM node
    * 
-   * @return replacement text
+   * @return Returns true if the node has one child, false - otherwise
    */
-  private String processText(String text, boolean bAttr) {
-    text = StringUtils.replace(text,"&", "&amp;");
-    text = StringUtils.replace(text, "<", "&lt;");
-    if (!bAttr) {
-      text = StringUtils.replace(text, ">", "&gt;");
+  private static boolean hasSingleChild(Node node) {
+    Node child = node.getFirstChild();
+    return child != null && child.getNextSibling() == null;
+  }
+
+  /**
+   * Returns the namespace URI bound to a prefix.
+   * 
+   * @param prefix
+   *          prefix
+   * 
+   * @return Returns the namespace URI, or null if the prefix is not declared
+   */
+  private String getUri(String prefix) {
+    NamespaceContextParams ncp = namespaces.get(prefix);
+    return ncp != null ? ncp.getUri() : null;
+  }
+
+  /**
+   * Writes a qualified name.
+   * 
+   * @param prefix
+   *          prefix, an empty string for a name without prefix
+   * @param localName
+   *          local name
+   * 
+   * @throws IOException
+   */
+  private void writeName(String prefix, String localName) throws IOException {
+    if (!prefix.isEmpty()) {
+      writer.write(prefix);
+      writer.write(':');
+    }
+    writer.write(localName);
+  }
+
+  /**
+   * Writes the value of an attribute with the leading "=".
+   * 
+   * @param value
+   *          value
+   * @param bEscape
+   *          true if the value is escaped
+   * 
+   * @throws IOException
+   */
+  private void writeValue(String value, boolean bEscape) throws IOException {
+    writer.write('=');
+    writer.write('"');
+    if (bEscape) {
+      writer.writeAttributeValue(value);
     } else {
-      text = StringUtils.replace(text, "\"", "&quot;");
-      text = StringUtils.replace(text, "#xA", "&#xA;");
-      text = StringUtils.replace(text, "#x9", "&#x9;");
+      writer.write(value);
     }
-    text = StringUtils.replace(text, "#xD", "&#xD;");
-    return text;
+    writer.write('"');
   }
 
   /**
@@ -809,31 +1165,6 @@ class DOMCanonicalizerHandler {
     return name;
   }
 
-  /**
-   * Returns parameter by key.
-   * 
-   * @param key
-   *          key
-   * @return parameter
-   */
-  private NamespaceContextParams getLastElement(String key) {
-    return getLastElement(key, -1);
-  }
-
-  /**
-   * Returns parameter by key.
-   * 
-   * @param key
-   *          key
-   * @param shift
-   *          shift
-   * @return parameter
-   */
-  private NamespaceContextParams getLastElement(String key, int shift) {
-    List<NamespaceContextParams> lst = namespaces.get(key);
-    return lst.size() + shift > -1 ? lst.get(lst.size() + shift) : null;
-  }
-
   /**
    * Returns the node prefix.
    * 
@@ -0,0 +1,38 @@
+package ru.relex.c14n2;
+
+import java.security.MessageDigest;
+
+/**
+ * The sink feeding the canonical form into a message digest.
+ */
+class MessageDigestSink implements CanonicalizerSink {
+  private final MessageDigest digest;
+
+  /**
+   * Constructor.
+   * 
+   * @param digest
+   *          message digest
+   */
+  public MessageDigestSink(MessageDigest digest) {
+    if (digest == null) {
+      throw new NullPointerException();
+    }
+    this.digest = digest;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void write(byte[] b, int off, int len) {
+    digest.update(b, off, len);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void flush() {
+  }
+}
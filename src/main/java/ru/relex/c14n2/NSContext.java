@@ -14,6 +14,7 @@ class NSContext implements PrefixResolver {
 
   private List<String> xpathNs;
   private ObjectVector words;
+  private volatile boolean bUsed = true;
 
   /**
    * Constructor.
@@ -44,6 +45,26 @@ class NSContext implements PrefixResolver {
     this.words = words;
   }
 
+  /**
+   * Returns whether the declaration is used since the flag was cleared by
+   * {@link XPathCache}.
+   * 
+   * @return Returns true if the declaration is used, false - otherwise
+   */
+  boolean isUsed() {
+    return bUsed;
+  }
+
+  /**
+   * Sets the flag of the use of the declaration.
+   * 
+   * @param bUsed
+   *          true if the declaration is used, false - otherwise
+   */
+  void setUsed(boolean bUsed) {
+    this.bUsed = bUsed;
+  }
+
   /**
    * {@inheritDoc}
    */
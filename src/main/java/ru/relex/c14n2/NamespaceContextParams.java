@@ -9,6 +9,7 @@ class NamespaceContextParams {
   private int depth = 1;
   private String newPrefix = "";
   private Boolean hasOutput = null;
+  private NamespaceContextParams previous = null;
 
   /**
    * Constructor.
@@ -104,6 +105,20 @@ class NamespaceContextParams {
     this.prefix = prefix;
   }
 
+  /**
+   * Returns the declaration of the same prefix which is overridden by this
+   * declaration.
+   * 
+   * @return Returns the overridden declaration, or null
+   */
+  public NamespaceContextParams getPrevious() {
+    return previous;
+  }
+
+  public void setPrevious(NamespaceContextParams previous) {
+    this.previous = previous;
+  }
+
   /**
    * {@inheritDoc}
    */
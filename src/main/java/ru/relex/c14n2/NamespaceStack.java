@@ -0,0 +1,308 @@
+package ru.relex.c14n2;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The scoped stack of namespace declarations.
+ *
+ * All declarations are kept in one array in the order of the depth of the
+ * nodes, so the declarations of a node are removed by truncating the array.
+ * Every prefix is indexed to its current declaration, and every declaration
+ * refers to the declaration of the same prefix it overrides.
+ *
+ * A node shares the declarations of its parent until it changes one of them:
+ * the declaration is copied to the depth of the node only then (see
+ * {@link #getForUpdate(String, int)}). The removed entries stay in the array
+ * and are reused, so a node without changes allocates nothing.
+ *
+ * The context key of every declaration (see
+ * {@link #getContextKey(CanonicalizationCache)}) is kept until the declaration
+ * or one below it is removed or replaced. The declarations of a node are
+ * changed only while the node is processed, before the keys of its child nodes
+ * are requested.
+ */
+class NamespaceStack {
+  private NamespaceContextParams[] stack = new NamespaceContextParams[16];
+  private int size = 0;
+  private int maxSize = 0;
+
+  private int[] contextKeys = null;
+  // number of the declarations from the bottom which keys are valid
+  private int keyCount = 0;
+
+  private String[] prefixes = new String[8];
+  private int prefixCount = 0;
+
+  private final Map<String, NamespaceContextParams> bindings;
+
+  /**
+   * Constructor.
+   */
+  public NamespaceStack() {
+    bindings = new HashMap<String, NamespaceContextParams>();
+  }
+
+  /**
+   * Creates a snapshot of the declarations of a stack. The snapshot shares the
+   * declarations with the stack: they are never changed by the snapshot, since
+   * the nodes processed with it are deeper than the declarations. The stack
+   * must not be changed while the snapshot is in use.
+   *
+   * @param parent
+   *          stack
+   */
+  public NamespaceStack(NamespaceStack parent) {
+    stack = new NamespaceContextParams[Math.max(parent.size * 2, 16)];
+    System.arraycopy(parent.stack, 0, stack, 0, parent.size);
+    size = parent.size;
+    maxSize = size;
+    prefixes = new String[Math.max(parent.prefixCount * 2, 8)];
+    System.arraycopy(parent.prefixes, 0, prefixes, 0, parent.prefixCount);
+    prefixCount = parent.prefixCount;
+    bindings = new HashMap<String, NamespaceContextParams>(parent.bindings);
+  }
+
+  /**
+   * Returns the maximum number of declarations in the stack since it was
+   * created or since {@link #resetMaxSize()}.
+   *
+   * @return Returns the maximum size
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Starts measuring of the maximum size from the current size.
+   */
+  public void resetMaxSize() {
+    maxSize = size;
+  }
+
+  /**
+   * Returns the current declaration of a prefix.
+   *
+   * @param prefix
+   *          prefix
+   *
+   * @return Returns the declaration, or null if the prefix is not declared
+   */
+  public NamespaceContextParams get(String prefix) {
+    return bindings.get(prefix);
+  }
+
+  /**
+   * Returns whether a prefix is declared.
+   *
+   * @param prefix
+   *          prefix
+   *
+   * @return Returns true if the prefix is declared, false - otherwise
+   */
+  public boolean contains(String prefix) {
+    return bindings.containsKey(prefix);
+  }
+
+  /**
+   * Returns the number of declarations in the stack.
+   *
+   * @return Returns the size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns a declaration of the stack.
+   *
+   * @param idx
+   *          index of the declaration, from 0 to {@link #size()} - 1
+   *
+   * @return Returns the declaration
+   */
+  public NamespaceContextParams getEntry(int idx) {
+    return stack[idx];
+  }
+
+  /**
+   * Returns the context key of the declarations in the stack. The keys of the
+   * declarations which are not changed since the previous call are reused, so
+   * only the new declarations are looked up.
+   *
+   * @param cache
+   *          cache of the canonical forms which assigns the keys
+   *
+   * @return Returns the key, 0 if the stack is empty
+   */
+  public int getContextKey(CanonicalizationCache cache) {
+    if (contextKeys == null) {
+      contextKeys = new int[stack.length];
+    } else if (contextKeys.length < size) {
+      contextKeys = Arrays.copyOf(contextKeys, stack.length);
+    }
+    for (; keyCount < size; keyCount++) {
+      contextKeys[keyCount] = cache.getContextKey(
+          keyCount == 0 ? 0 : contextKeys[keyCount - 1], stack[keyCount]);
+    }
+    return size == 0 ? 0 : contextKeys[size - 1];
+  }
+
+  /**
+   * Returns the number of declared prefixes.
+   *
+   * @return Returns the number of prefixes
+   */
+  public int getPrefixCount() {
+    return prefixCount;
+  }
+
+  /**
+   * Returns a declared prefix.
+   *
+   * @param idx
+   *          index of the prefix, from 0 to {@link #getPrefixCount()} - 1
+   *
+   * @return Returns the prefix
+   */
+  public String getPrefix(int idx) {
+    return prefixes[idx];
+  }
+
+  /**
+   * Returns the declaration of a prefix for update at the specified depth. If
+   * the current declaration belongs to a parent node, it is copied to the
+   * depth, the copy is not output yet.
+   *
+   * @param prefix
+   *          prefix
+   * @param depth
+   *          depth of the node in the DOM tree
+   *
+   * @return Returns the declaration, or null if the prefix is not declared
+   */
+  public NamespaceContextParams getForUpdate(String prefix, int depth) {
+    NamespaceContextParams current = bindings.get(prefix);
+    if (current == null || current.getDepth() == depth) {
+      if (current != null) {
+        invalidate(depth);
+      }
+      return current;
+    }
+    NamespaceContextParams ncp = obtain();
+    ncp.setUri(current.getUri());
+    ncp.setPrefix(current.getPrefix());
+    ncp.setNewPrefix(current.getNewPrefix());
+    ncp.setHasOutput(current.isHasOutput() != null ? Boolean.FALSE : null);
+    ncp.setDepth(depth);
+    push(ncp);
+    return ncp;
+  }
+
+  /**
+   * Declares a prefix at the specified depth. The declaration of the same
+   * prefix at this depth is replaced.
+   *
+   * @param prefix
+   *          prefix
+   * @param uri
+   *          namespace URI
+   * @param depth
+   *          depth of the node in the DOM tree
+   */
+  public void declare(String prefix, String uri, int depth) {
+    NamespaceContextParams current = bindings.get(prefix);
+    NamespaceContextParams ncp = current != null
+        && current.getDepth() == depth ? current : obtain();
+    invalidate(depth);
+    ncp.setUri(uri);
+    ncp.setHasOutput(false);
+    ncp.setNewPrefix(prefix);
+    ncp.setPrefix(prefix);
+    ncp.setDepth(depth);
+    if (ncp != current) {
+      push(ncp);
+    }
+  }
+
+  /**
+   * Adds a declaration on top of the stack. The depth of the declaration must
+   * not be less than the depth of the declarations in the stack.
+   *
+   * @param ncp
+   *          declaration
+   */
+  public void push(NamespaceContextParams ncp) {
+    if (size == stack.length) {
+      NamespaceContextParams[] newStack = new NamespaceContextParams[size * 2];
+      System.arraycopy(stack, 0, newStack, 0, size);
+      stack = newStack;
+    }
+    if (keyCount > size) {
+      keyCount = size;
+    }
+    stack[size++] = ncp;
+    if (size > maxSize) {
+      maxSize = size;
+    }
+    NamespaceContextParams previous = bindings.put(ncp.getPrefix(), ncp);
+    ncp.setPrevious(previous);
+    if (previous == null) {
+      if (prefixCount == prefixes.length) {
+        String[] newPrefixes = new String[prefixCount * 2];
+        System.arraycopy(prefixes, 0, newPrefixes, 0, prefixCount);
+        prefixes = newPrefixes;
+      }
+      prefixes[prefixCount++] = ncp.getPrefix();
+    }
+  }
+
+  /**
+   * Removes the declarations of the nodes with the depth which is greater than
+   * or equal to the specified depth.
+   *
+   * @param depth
+   *          depth of the node in the DOM tree
+   */
+  public void pop(int depth) {
+    while (size > 0 && stack[size - 1].getDepth() >= depth) {
+      NamespaceContextParams ncp = stack[--size];
+      NamespaceContextParams previous = ncp.getPrevious();
+      if (previous != null) {
+        bindings.put(ncp.getPrefix(), previous);
+      } else {
+        bindings.remove(ncp.getPrefix());
+        // the first declarations of prefixes are removed in reverse order
+        prefixes[--prefixCount] = null;
+      }
+      ncp.setPrevious(null);
+    }
+    if (keyCount > size) {
+      keyCount = size;
+    }
+  }
+
+  /**
+   * Discards the context keys of the declarations of the nodes with the depth
+   * which is greater than or equal to the specified depth.
+   *
+   * @param depth
+   *          depth of the node in the DOM tree
+   */
+  private void invalidate(int depth) {
+    while (keyCount > 0 && stack[keyCount - 1].getDepth() >= depth) {
+      keyCount--;
+    }
+  }
+
+  /**
+   * Returns a removed entry for reuse.
+   *
+   * @return Returns an unused entry
+   */
+  private NamespaceContextParams obtain() {
+    NamespaceContextParams ncp = size < stack.length ? stack[size] : null;
+    return ncp != null ? ncp : new NamespaceContextParams();
+  }
+}
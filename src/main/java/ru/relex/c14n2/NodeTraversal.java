@@ -0,0 +1,156 @@
+package ru.relex.c14n2;
+
+import java.util.Arrays;
+
+import org.w3c.dom.Node;
+
+/**
+ * The position of a walk over a DOM subtree.
+ *
+ * The ancestors of the current node are kept in an explicit stack, so the walk
+ * uses heap proportional to the depth of the subtree and no thread stack. The
+ * walk can be suspended between any two nodes and resumed later.
+ */
+class NodeTraversal {
+  private Node[] parents = null;
+  // true if the child nodes of the parent are selected by the inclusion list
+  private boolean[] filtered = null;
+  private int level = 0;
+
+  private Node node;
+  private int depth;
+  private boolean bComplete = false;
+
+  /**
+   * Constructor.
+   *
+   * @param node
+   *          root of the subtree
+   * @param depth
+   *          depth of the root in the DOM tree
+   */
+  public NodeTraversal(Node node, int depth) {
+    this.node = node;
+    this.depth = depth;
+  }
+
+  /**
+   * Returns the current node.
+   *
+   * @return Returns the node
+   */
+  public Node getNode() {
+    return node;
+  }
+
+  /**
+   * Returns the depth of the current node.
+   *
+   * @return Returns the depth in the DOM tree
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Returns whether the subtree of the current node is processed.
+   *
+   * @return Returns true if the node is complete, false if it is not started
+   */
+  public boolean isComplete() {
+    return bComplete;
+  }
+
+  /**
+   * Marks the subtree of the current node as processed.
+   */
+  public void setComplete() {
+    bComplete = true;
+  }
+
+  /**
+   * Returns the number of the ancestors of the current node in the subtree.
+   *
+   * @return Returns 0 for the root
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * Returns an ancestor of the current node.
+   *
+   * @param idx
+   *          level of the ancestor, 0 for the root
+   *
+   * @return Returns the ancestor
+   */
+  public Node getAncestor(int idx) {
+    return parents[idx];
+  }
+
+  /**
+   * Returns whether the current node is the root of the subtree.
+   *
+   * @return Returns true for the root, false - otherwise
+   */
+  public boolean isRoot() {
+    return level == 0;
+  }
+
+  /**
+   * Returns whether the siblings of the current node are selected by the
+   * inclusion list.
+   *
+   * @return Returns true if only the included siblings are processed
+   */
+  public boolean isFiltered() {
+    return filtered[level - 1];
+  }
+
+  /**
+   * Moves to a child node of the current node.
+   *
+   * @param child
+   *          child node
+   * @param bFiltered
+   *          true if only the included child nodes are processed
+   */
+  public void pushChild(Node child, boolean bFiltered) {
+    if (parents == null) {
+      parents = new Node[16];
+      filtered = new boolean[16];
+    } else if (level == parents.length) {
+      parents = Arrays.copyOf(parents, level * 2);
+      filtered = Arrays.copyOf(filtered, level * 2);
+    }
+    parents[level] = node;
+    filtered[level] = bFiltered;
+    level++;
+    node = child;
+    depth++;
+    bComplete = false;
+  }
+
+  /**
+   * Moves to a sibling of the current node.
+   *
+   * @param sibling
+   *          next processed sibling
+   */
+  public void moveTo(Node sibling) {
+    node = sibling;
+    bComplete = false;
+  }
+
+  /**
+   * Moves to the parent of the current node after its last processed child.
+   */
+  public void pop() {
+    level--;
+    node = parents[level];
+    parents[level] = null;
+    depth--;
+    bComplete = true;
+  }
+}
@@ -0,0 +1,40 @@
+package ru.relex.c14n2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The sink writing the canonical form to an output stream.
+ */
+class OutputStreamSink implements CanonicalizerSink {
+  private final OutputStream out;
+
+  /**
+   * Constructor.
+   * 
+   * @param out
+   *          output stream
+   */
+  public OutputStreamSink(OutputStream out) {
+    if (out == null) {
+      throw new NullPointerException();
+    }
+    this.out = out;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+}
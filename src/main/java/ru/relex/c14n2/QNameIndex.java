@@ -0,0 +1,69 @@
+package ru.relex.c14n2;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The hash index of QName-aware parameters by namespace URI and local name.
+ *
+ * The names are indexed by the local name first, so a lookup needs neither a
+ * composite key nor a concatenated string.
+ */
+class QNameIndex {
+  private final Map<String, Set<String>> names;
+
+  /**
+   * Constructor.
+   *
+   * @param list
+   *          QName-aware parameters
+   */
+  public QNameIndex(List<QNameAwareParameter> list) {
+    if (list.isEmpty()) {
+      names = Collections.emptyMap();
+      return;
+    }
+    names = new HashMap<String, Set<String>>();
+    for (QNameAwareParameter en : list) {
+      // a parameter without a name or namespace never matches
+      if (en.getName() == null || en.getNs() == null) {
+        continue;
+      }
+      Set<String> uris = names.get(en.getName());
+      if (uris == null) {
+        uris = new HashSet<String>(2);
+        names.put(en.getName(), uris);
+      }
+      uris.add(en.getNs());
+    }
+  }
+
+  /**
+   * Returns whether there are no parameters.
+   *
+   * @return Returns true if the index is empty, false - otherwise
+   */
+  public boolean isEmpty() {
+    return names.isEmpty();
+  }
+
+  /**
+   * Returns whether a name is indexed.
+   *
+   * @param uri
+   *          namespace URI, or null
+   * @param localName
+   *          local name
+   *
+   * @return Returns true if there is a parameter with the name, false -
+   *         otherwise
+   */
+  public boolean contains(String uri, String localName) {
+    Set<String> uris = names.get(localName);
+    return uris != null && uri != null && uris.contains(uri);
+  }
+}
@@ -0,0 +1,250 @@
+package ru.relex.c14n2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.DefaultHandler2;
+
+/**
+ * C14N2 canonicalization of SAX events.
+ * 
+ * The handler is registered both as the content handler and as the lexical
+ * handler (property "http://xml.org/sax/properties/lexical-handler") of a
+ * namespace aware parser, so the document is canonicalized while it is parsed.
+ * The canonical form is completed by the endDocument event. The output is the
+ * same as the output of {@link DOMCanonicalizer} for the DOM document parsed
+ * from the same source.
+ */
+public class SAXCanonicalizer extends DefaultHandler2 {
+  private static final String C = ":";
+
+  private StreamCanonicalizerHandler canonicalizer = null;
+
+  private String[] nsPrefixes = new String[8];
+  private String[] nsUris = new String[8];
+  private int nsCount = 0;
+
+  private boolean bDTD = false;
+  private StringBuilder cdata = null;
+
+  /**
+   * Constructor.
+   * 
+   * @param params
+   *          canonicalization parameters
+   * @param out
+   *          output stream receiving the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public SAXCanonicalizer(Parameters params, OutputStream out)
+      throws Exception {
+    this(params, new OutputStreamSink(out));
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param params
+   *          canonicalization parameters
+   * @param writer
+   *          character stream receiving the canonical form
+   * 
+   * @throws Exception
+   */
+  public SAXCanonicalizer(Parameters params, Writer writer) throws Exception {
+    this(params, new WriterSink(writer));
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param params
+   *          canonicalization parameters
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public SAXCanonicalizer(Parameters params, CanonicalizerSink sink)
+      throws Exception {
+    this(CanonicalizationProfile.valueOf(params), sink);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param profile
+   *          compiled canonicalization parameters
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public SAXCanonicalizer(CanonicalizationProfile profile,
+      CanonicalizerSink sink) throws Exception {
+    if (profile == null) {
+      throw new NullPointerException();
+    }
+    canonicalizer = new StreamCanonicalizerHandler(profile, sink);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void startPrefixMapping(String prefix, String uri) {
+    if (nsCount == nsPrefixes.length) {
+      String[] prefixes = new String[nsCount * 2];
+      String[] uris = new String[nsCount * 2];
+      System.arraycopy(nsPrefixes, 0, prefixes, 0, nsCount);
+      System.arraycopy(nsUris, 0, uris, 0, nsCount);
+      nsPrefixes = prefixes;
+      nsUris = uris;
+    }
+    nsPrefixes[nsCount] = prefix;
+    nsUris[nsCount] = uri;
+    nsCount++;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void startElement(String uri, String localName, String qName,
+      Attributes atts) throws SAXException {
+    try {
+      int idx = qName.indexOf(C);
+      String name = idx > -1 ? qName.substring(idx + 1) : qName;
+      Element element = canonicalizer.createElement(
+          idx > -1 ? qName.substring(0, idx) : null, name);
+      for (int i = 0; i < nsCount; i++) {
+        canonicalizer.addNamespace(element, nsPrefixes[i], nsUris[i]);
+      }
+      nsCount = 0;
+      // with the namespace-prefixes feature the declarations are repeated
+      // as attributes, which replace the same attributes added above
+      for (int i = 0; i < atts.getLength(); i++) {
+        canonicalizer.addAttribute(element, null, atts.getQName(i),
+            atts.getValue(i));
+      }
+      canonicalizer.processElement(element, uri, name);
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void endElement(String uri, String localName, String qName)
+      throws SAXException {
+    try {
+      canonicalizer.processEndElement();
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void characters(char[] ch, int start, int length) {
+    if (cdata != null) {
+      cdata.append(ch, start, length);
+    } else {
+      canonicalizer.processText(ch, start, length);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void ignorableWhitespace(char[] ch, int start, int length) {
+    characters(ch, start, length);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void processingInstruction(String target, String data)
+      throws SAXException {
+    try {
+      canonicalizer.processPI(target, data);
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void endDocument() throws SAXException {
+    try {
+      canonicalizer.processEndDocument();
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void startDTD(String name, String publicId, String systemId) {
+    bDTD = true;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void endDTD() {
+    bDTD = false;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void startCDATA() {
+    cdata = new StringBuilder();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void endCDATA() throws SAXException {
+    try {
+      String data = cdata.toString();
+      cdata = null;
+      canonicalizer.processCData(data);
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void comment(char[] ch, int start, int length) throws SAXException {
+    if (bDTD)
+      return;
+    try {
+      canonicalizer.processComment(new String(ch, start, length));
+    } catch (IOException e) {
+      throw new SAXException(e);
+    }
+  }
+}
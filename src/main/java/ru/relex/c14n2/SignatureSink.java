@@ -0,0 +1,44 @@
+package ru.relex.c14n2;
+
+import java.io.IOException;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * The sink feeding the canonical form into a signature.
+ */
+class SignatureSink implements CanonicalizerSink {
+  private final Signature signature;
+
+  /**
+   * Constructor.
+   * 
+   * @param signature
+   *          signature initialized for signing or verification
+   */
+  public SignatureSink(Signature signature) {
+    if (signature == null) {
+      throw new NullPointerException();
+    }
+    this.signature = signature;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    try {
+      signature.update(b, off, len);
+    } catch (SignatureException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void flush() {
+  }
+}
@@ -0,0 +1,229 @@
+package ru.relex.c14n2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Element;
+
+/**
+ * C14N2 canonicalization of a StAX stream.
+ * 
+ * The document is read once and is never built in memory, memory is bounded
+ * by the depth of the document. The output is the same as the output of
+ * {@link DOMCanonicalizer} for the DOM document parsed from the same source,
+ * if the reader reports CDATA sections as CDATA events and does not coalesce
+ * them with the adjacent text. The reader of the default JDK
+ * {@link javax.xml.stream.XMLInputFactory} reports CDATA sections as
+ * characters unless the property
+ * "http://java.sun.com/xml/stream/properties/report-cdata-event" is set. The
+ * CDATA sections reported as characters are canonicalized as text: "#xD" in
+ * the section is not replaced by a character reference, and in trim mode the
+ * section is trimmed together with the adjacent text.
+ */
+public class StAXCanonicalizer {
+
+  private StreamCanonicalizerHandler canonicalizer = null;
+  private XMLStreamReader reader = null;
+
+  /**
+   * Constructor.
+   * 
+   * @param reader
+   *          StAX reader positioned at the start of the document, reporting
+   *          CDATA sections as CDATA events
+   * @param profile
+   *          compiled canonicalization parameters
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  private StAXCanonicalizer(XMLStreamReader reader,
+      CanonicalizationProfile profile, CanonicalizerSink sink)
+      throws Exception {
+    if (profile == null) {
+      throw new NullPointerException();
+    }
+    if (reader == null) {
+      throw new NullPointerException();
+    }
+    if (reader.getEventType() != XMLStreamConstants.START_DOCUMENT) {
+      throw new IllegalStateException(
+          "The reader is not positioned at the start of the document");
+    }
+    this.reader = reader;
+    canonicalizer = new StreamCanonicalizerHandler(profile, sink);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param reader
+   *          StAX reader positioned at the start of the document, reporting
+   *          CDATA sections as CDATA events
+   * @param params
+   *          canonicalization parameters
+   * 
+   * @return Returns the canonical form of an XML document
+   * 
+   * @throws Exception
+   */
+  public static String canonicalize(XMLStreamReader reader, Parameters params)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    canonicalize(reader, params, out);
+    return out.toString("UTF-8");
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param reader
+   *          StAX reader positioned at the start of the document, reporting
+   *          CDATA sections as CDATA events
+   * @param params
+   *          canonicalization parameters
+   * @param out
+   *          output stream receiving the canonical form in UTF-8
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(XMLStreamReader reader, Parameters params,
+      OutputStream out) throws Exception {
+    canonicalize(reader, params, new OutputStreamSink(out));
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param reader
+   *          StAX reader positioned at the start of the document, reporting
+   *          CDATA sections as CDATA events
+   * @param params
+   *          canonicalization parameters
+   * @param writer
+   *          character stream receiving the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(XMLStreamReader reader, Parameters params,
+      Writer writer) throws Exception {
+    canonicalize(reader, params, new WriterSink(writer));
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param reader
+   *          StAX reader positioned at the start of the document, reporting
+   *          CDATA sections as CDATA events
+   * @param params
+   *          canonicalization parameters
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(XMLStreamReader reader, Parameters params,
+      CanonicalizerSink sink) throws Exception {
+    canonicalize(reader, CanonicalizationProfile.valueOf(params), sink);
+  }
+
+  /**
+   * Canonicalization method.
+   * 
+   * @param reader
+   *          StAX reader positioned at the start of the document, reporting
+   *          CDATA sections as CDATA events
+   * @param profile
+   *          compiled canonicalization parameters
+   * @param sink
+   *          receiver of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static void canonicalize(XMLStreamReader reader,
+      CanonicalizationProfile profile, CanonicalizerSink sink)
+      throws Exception {
+    new StAXCanonicalizer(reader, profile, sink).process();
+  }
+
+  /**
+   * Calculates the digest of the canonical form.
+   * 
+   * @param reader
+   *          StAX reader positioned at the start of the document, reporting
+   *          CDATA sections as CDATA events
+   * @param params
+   *          canonicalization parameters
+   * @param digest
+   *          message digest
+   * 
+   * @return Returns the digest of the canonical form
+   * 
+   * @throws Exception
+   */
+  public static byte[] digest(XMLStreamReader reader, Parameters params,
+      MessageDigest digest) throws Exception {
+    canonicalize(reader, params, new MessageDigestSink(digest));
+    return digest.digest();
+  }
+
+  /**
+   * Processing of the stream.
+   * 
+   * @throws Exception
+   */
+  private void process() throws Exception {
+    while (reader.hasNext()) {
+      switch (reader.next()) {
+      case XMLStreamConstants.START_ELEMENT:
+        processElement();
+        break;
+      case XMLStreamConstants.END_ELEMENT:
+        canonicalizer.processEndElement();
+        break;
+      case XMLStreamConstants.CHARACTERS:
+      case XMLStreamConstants.SPACE:
+        canonicalizer.processText(reader.getTextCharacters(),
+            reader.getTextStart(), reader.getTextLength());
+        break;
+      case XMLStreamConstants.CDATA:
+        canonicalizer.processCData(reader.getText());
+        break;
+      case XMLStreamConstants.COMMENT:
+        canonicalizer.processComment(reader.getText());
+        break;
+      case XMLStreamConstants.PROCESSING_INSTRUCTION:
+        canonicalizer.processPI(reader.getPITarget(), reader.getPIData());
+        break;
+      }
+    }
+    canonicalizer.processEndDocument();
+  }
+
+  /**
+   * Processing of element start.
+   * 
+   * @throws Exception
+   */
+  private void processElement() throws Exception {
+    String localName = reader.getLocalName();
+    Element element = canonicalizer.createElement(reader.getPrefix(),
+        localName);
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      canonicalizer.addNamespace(element, reader.getNamespacePrefix(i),
+          reader.getNamespaceURI(i));
+    }
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      canonicalizer.addAttribute(element, reader.getAttributePrefix(i),
+          reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+    }
+    canonicalizer.processElement(element, reader.getNamespaceURI(), localName);
+  }
+}
@@ -0,0 +1,344 @@
+package ru.relex.c14n2;
+
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * C14N2 canonicalizer of a streamed document.
+ *
+ * Only the path of the open elements is kept: every node is passed to
+ * {@link DOMCanonicalizerHandler} as soon as it is complete and is removed
+ * from its parent afterwards, so memory is bounded by the depth of the
+ * document. The content of QName-aware elements and XPath elements is
+ * collected before the element is processed, because the namespaces which are
+ * visible on such an element depend on its text.
+ */
+class StreamCanonicalizerHandler {
+  private static final String NS = "xmlns";
+  private static final String C = ":";
+
+  private final CanonicalizationProfile profile;
+  private final CanonicalWriter writer;
+  private final DOMCanonicalizerHandler canonicalizer;
+  private final Document doc;
+
+  private Node current;
+  private int depth = 0;
+  private Node bufferedRoot = null;
+  private final StringBuilder text = new StringBuilder();
+
+  /**
+   * Constructor.
+   *
+   * @param profile
+   *          canonicalization profile
+   * @param sink
+   *          receiver of the canonical form
+   *
+   * @throws ParserConfigurationException
+   */
+  protected StreamCanonicalizerHandler(CanonicalizationProfile profile,
+      CanonicalizerSink sink) throws ParserConfigurationException {
+    this.profile = profile;
+    writer = new CanonicalWriter(sink);
+    canonicalizer = new DOMCanonicalizerHandler(profile, null, writer);
+    doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .newDocument();
+    current = doc;
+  }
+
+  /**
+   * Creates an element. The attributes of the element must be set before the
+   * element is passed to {@link #processElement(Element, String, String)}.
+   *
+   * @param prefix
+   *          prefix of the element name
+   * @param localName
+   *          local name of the element
+   *
+   * @return Returns a new element
+   *
+   * @throws IOException
+   */
+  protected Element createElement(String prefix, String localName)
+      throws IOException {
+    flushText();
+    return doc.createElement(getQName(prefix, localName));
+  }
+
+  /**
+   * Adds an attribute to the element.
+   *
+   * @param element
+   *          element
+   * @param prefix
+   *          prefix of the attribute name
+   * @param localName
+   *          local name of the attribute
+   * @param value
+   *          value of the attribute
+   */
+  protected void addAttribute(Element element, String prefix,
+      String localName, String value) {
+    element.setAttribute(getQName(prefix, localName), value);
+  }
+
+  /**
+   * Adds a namespace declaration to the element.
+   *
+   * @param element
+   *          element
+   * @param prefix
+   *          prefix, an empty string or null for the default namespace
+   * @param uri
+   *          namespace URI
+   */
+  protected void addNamespace(Element element, String prefix, String uri) {
+    element.setAttribute(prefix == null || prefix.isEmpty() ? NS : NS + C
+        + prefix, uri != null ? uri : "");
+  }
+
+  /**
+   * Processing of element start.
+   *
+   * @param element
+   *          element created by {@link #createElement(String, String)}
+   * @param uri
+   *          namespace URI of the element
+   * @param localName
+   *          local name of the element
+   *
+   * @throws IOException
+   */
+  protected void processElement(Element element, String uri, String localName)
+      throws IOException {
+    current.appendChild(element);
+    current = element;
+    depth++;
+    if (bufferedRoot == null && isQNameAware(uri, localName)) {
+      bufferedRoot = element;
+    }
+    if (bufferedRoot == null) {
+      canonicalizer.processElement(element, depth);
+    }
+  }
+
+  /**
+   * Processing of element end.
+   *
+   * @throws IOException
+   */
+  protected void processEndElement() throws IOException {
+    flushText();
+    Node element = current;
+    current = element.getParentNode();
+    depth--;
+    if (bufferedRoot == null) {
+      canonicalizer.processEndElement(element, depth + 1);
+    } else if (bufferedRoot == element) {
+      bufferedRoot = null;
+      process(element, depth + 1);
+    } else {
+      return;
+    }
+    current.removeChild(element);
+  }
+
+  /**
+   * Processing of character data. Adjacent character data is joined into one
+   * text node.
+   *
+   * @param ch
+   *          characters
+   * @param start
+   *          start offset
+   * @param length
+   *          number of characters
+   */
+  protected void processText(char[] ch, int start, int length) {
+    text.append(ch, start, length);
+  }
+
+  /**
+   * Processing of CDATA section.
+   *
+   * @param data
+   *          content of the section
+   *
+   * @throws IOException
+   */
+  protected void processCData(String data) throws IOException {
+    flushText();
+    if (current != doc) {
+      processChild(doc.createCDATASection(data));
+    }
+  }
+
+  /**
+   * Processing of comment.
+   *
+   * @param data
+   *          content of the comment
+   *
+   * @throws IOException
+   */
+  protected void processComment(String data) throws IOException {
+    flushText();
+    processChild(doc.createComment(data));
+  }
+
+  /**
+   * Processing of process instruction.
+   *
+   * @param target
+   *          target
+   * @param data
+   *          data
+   *
+   * @throws IOException
+   */
+  protected void processPI(String target, String data) throws IOException {
+    flushText();
+    processChild(doc.createProcessingInstruction(target, data != null ? data
+        : ""));
+  }
+
+  /**
+   * Completion of the document.
+   *
+   * @throws IOException
+   */
+  protected void processEndDocument() throws IOException {
+    flushText();
+    writer.flush();
+    canonicalizer.complete();
+  }
+
+  /**
+   * Passes the collected character data as a text node.
+   *
+   * @throws IOException
+   */
+  private void flushText() throws IOException {
+    if (text.length() == 0) {
+      return;
+    }
+    String value = text.toString();
+    text.setLength(0);
+    // character data outside the document element is not a part of DOM
+    if (current != doc) {
+      processChild(doc.createTextNode(value));
+    }
+  }
+
+  /**
+   * Adds a complete node to the current element and processes it.
+   *
+   * @param node
+   *          DOM node
+   *
+   * @throws IOException
+   */
+  private void processChild(Node node) throws IOException {
+    current.appendChild(node);
+    if (bufferedRoot == null) {
+      process(node, depth + 1);
+      current.removeChild(node);
+    }
+  }
+
+  /**
+   * Processing a complete node. The subtree is walked without recursion.
+   *
+   * @param node
+   *          DOM node
+   * @param nodeDepth
+   *          depth of the node in the DOM tree
+   *
+   * @throws IOException
+   */
+  private void process(Node node, int nodeDepth) throws IOException {
+    int level = 0;
+    while (true) {
+      switch (node.getNodeType()) {
+      case Node.ELEMENT_NODE:
+        canonicalizer.processElement(node, nodeDepth);
+        break;
+      case Node.TEXT_NODE:
+        canonicalizer.processText(node, nodeDepth);
+        break;
+      case Node.PROCESSING_INSTRUCTION_NODE:
+        canonicalizer.processPI(node, nodeDepth);
+        break;
+      case Node.COMMENT_NODE:
+        canonicalizer.processComment(node, nodeDepth);
+        break;
+      case Node.CDATA_SECTION_NODE:
+        canonicalizer.processCData(node);
+        break;
+      }
+      if (node.hasChildNodes()) {
+        node = node.getFirstChild();
+        nodeDepth++;
+        level++;
+        continue;
+      }
+      // the next sibling, or the end of the parent
+      while (true) {
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+          canonicalizer.processEndElement(node, nodeDepth);
+        }
+        if (level == 0) {
+          return;
+        }
+        if (node.getNextSibling() != null) {
+          node = node.getNextSibling();
+          break;
+        }
+        node = node.getParentNode();
+        nodeDepth--;
+        level--;
+      }
+    }
+  }
+
+  /**
+   * Returns whether the content of an element is processed as QName-valued.
+   *
+   * @param uri
+   *          namespace URI of the element
+   * @param localName
+   *          local name of the element
+   *
+   * @return Returns true if the element is QName-aware element or XPath
+   *         element, false - otherwise
+   */
+  private boolean isQNameAware(String uri, String localName) {
+    if (uri == null) {
+      uri = "";
+    }
+    return profile.getQnameAwareElementIndex().contains(uri, localName)
+        || profile.getQnameAwareXPathElementIndex().contains(uri, localName);
+  }
+
+  /**
+   * Returns the qualified name.
+   *
+   * @param prefix
+   *          prefix
+   * @param localName
+   *          local name
+   *
+   * @return Returns the qualified name
+   */
+  private static String getQName(String prefix, String localName) {
+    return prefix == null || prefix.isEmpty() ? localName : prefix + C
+        + localName;
+  }
+}
@@ -0,0 +1,20 @@
+package ru.relex.c14n2;
+
+/**
+ * The listener of the subsets canonicalized by one call (see
+ * {@link DOMCanonicalizer#canonicalizeSubsets(org.w3c.dom.Document, java.util.List, java.util.List, CanonicalizationProfile, java.util.List)}
+ * ).
+ */
+interface SubsetListener {
+
+  /**
+   * Called when the canonical form of a subset is written and flushed, before
+   * the next subset is started.
+   *
+   * @param idx
+   *          index of the subset
+   *
+   * @throws Exception
+   */
+  void completed(int idx) throws Exception;
+}
@@ -0,0 +1,72 @@
+package ru.relex.c14n2;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * The sink writing the canonical form to a character stream.
+ */
+class WriterSink implements CanonicalizerSink {
+  private final Writer writer;
+  private final CharsetDecoder decoder = Charset.forName("UTF-8")
+      .newDecoder();
+  private final CharBuffer chars = CharBuffer
+      .allocate(CanonicalWriter.BUFFER_SIZE);
+
+  /**
+   * Constructor.
+   * 
+   * @param writer
+   *          character stream
+   */
+  public WriterSink(Writer writer) {
+    if (writer == null) {
+      throw new NullPointerException();
+    }
+    this.writer = writer;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(b, off, len);
+    CoderResult result;
+    do {
+      result = decoder.decode(bytes, chars, false);
+      if (result.isError()) {
+        result.throwException();
+      }
+      writeChars();
+    } while (result.isOverflow());
+    if (bytes.hasRemaining()) {
+      throw new CharacterCodingException();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void flush() throws IOException {
+    writer.flush();
+  }
+
+  /**
+   * Writes the decoded characters to the character stream.
+   * 
+   * @throws IOException
+   */
+  private void writeChars() throws IOException {
+    chars.flip();
+    writer.write(chars.array(), chars.arrayOffset(), chars.remaining());
+    chars.clear();
+  }
+}
@@ -0,0 +1,223 @@
+package ru.relex.c14n2;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xpath.compiler.XPathParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The process-wide cache of parsed XPath expressions.
+ *
+ * An XPath expression is parsed once: the token queue and the namespace
+ * prefixes of the expression are kept and shared by all canonicalizations
+ * until the expression is evicted. An expression which cannot be parsed is
+ * cached too, so it is not parsed and logged again. The parsed expressions
+ * are not modified after they are cached, so they can be read by several
+ * threads. The lookups do not lock: only the threads which add an expression
+ * are serialized, and the cache can exceed the maximum size by the number of
+ * such threads for a moment. When the cache is full, the expressions which are
+ * not used since the previous eviction are evicted first.
+ */
+public final class XPathCache {
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(XPathCache.class);
+
+  /**
+   * The default maximum number of cached expressions.
+   */
+  public static final int DEFAULT_MAX_SIZE = 1024;
+
+  private static final XPathCache INSTANCE = new XPathCache(DEFAULT_MAX_SIZE);
+
+  private final ConcurrentHashMap<String, NSContext> entries = new ConcurrentHashMap<String, NSContext>();
+  private final Object lock = new Object();
+  private volatile int maxSize;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize
+   *          maximum number of cached expressions
+   */
+  XPathCache(int maxSize) {
+    setMaxSize(maxSize);
+  }
+
+  /**
+   * Returns the cache shared by all canonicalizations.
+   *
+   * @return Returns the cache
+   */
+  public static XPathCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the parsed XPath expression. The expression is parsed if it is not
+   * cached.
+   *
+   * @param xpath
+   *          XPath expression
+   *
+   * @return Returns the parsed expression, or null if it cannot be parsed
+   */
+  NSContext get(String xpath) {
+    return get(xpath, null);
+  }
+
+  /**
+   * Returns the parsed XPath expression. The expression is parsed if it is not
+   * cached.
+   *
+   * @param xpath
+   *          XPath expression
+   * @param metrics
+   *          metrics of the canonicalization, or null
+   *
+   * @return Returns the parsed expression, or null if it cannot be parsed
+   */
+  NSContext get(String xpath, CanonicalizationMetrics metrics) {
+    NSContext nsContext = entries.get(xpath);
+    if (nsContext != null) {
+      hits.incrementAndGet();
+      if (metrics != null) {
+        metrics.xpathCacheHitCount++;
+      }
+      if (!nsContext.isUsed()) {
+        nsContext.setUsed(true);
+      }
+      return nsContext.getWords() != null ? nsContext : null;
+    }
+    misses.incrementAndGet();
+    if (metrics != null) {
+      metrics.xpathCacheMissCount++;
+    }
+    try {
+      nsContext = new NSContext();
+      XPathParser xpathParser = new XPathParser(null, null);
+      org.apache.xpath.compiler.Compiler xpathCompiler = new org.apache.xpath.compiler.Compiler();
+      xpathParser.initXPath(xpathCompiler, xpath, nsContext);
+      nsContext.setWords(xpathCompiler.getTokenQueue());
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+      // the expression without the token queue is not parsed
+      nsContext = new NSContext();
+    }
+    if (maxSize > 0) {
+      // the expression parsed by another thread is kept
+      NSContext cached = entries.putIfAbsent(xpath, nsContext);
+      if (cached != null) {
+        nsContext = cached;
+      } else {
+        synchronized (lock) {
+          evict(nsContext);
+        }
+      }
+    }
+    return nsContext.getWords() != null ? nsContext : null;
+  }
+
+  /**
+   * Evicts the expressions over the maximum size. The flags of the use of the
+   * expressions are cleared by the first pass, so an expression which is not
+   * used since the previous eviction is evicted first. The second pass evicts
+   * any expressions.
+   *
+   * @param added
+   *          the expression which is added and is not evicted, or null
+   */
+  private void evict(NSContext added) {
+    int size = added != null ? Math.max(maxSize, 1) : maxSize;
+    for (int pass = 0; entries.size() > size; pass++) {
+      Iterator<NSContext> it = entries.values().iterator();
+      while (it.hasNext() && entries.size() > size) {
+        NSContext nsContext = it.next();
+        if (nsContext == added) {
+          continue;
+        }
+        if (pass == 0 && nsContext.isUsed()) {
+          nsContext.setUsed(false);
+        } else {
+          it.remove();
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the maximum number of cached expressions.
+   *
+   * @return Returns the maximum size
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Sets the maximum number of cached expressions. The expressions over the
+   * new size are evicted.
+   *
+   * @param maxSize
+   *          maximum size, 0 disables caching
+   */
+  public void setMaxSize(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Negative cache size: " + maxSize);
+    }
+    synchronized (lock) {
+      this.maxSize = maxSize;
+      evict(null);
+    }
+  }
+
+  /**
+   * Returns the number of cached expressions.
+   *
+   * @return Returns the size
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Removes all cached expressions. The counters are not reset.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the number of lookups of cached expressions.
+   *
+   * @return Returns the number of hits
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of lookups which parsed an expression.
+   *
+   * @return Returns the number of misses
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of evicted expressions.
+   *
+   * @return Returns the number of evictions
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+}
@@ -0,0 +1,162 @@
+package ru.relex.c14n2;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * The compiled step of a location path of {@link XPathSubsetFilter}.
+ *
+ * A step is a name test of an element or an attribute with optional tests of
+ * the attributes of the element. Names are compared by namespace URI and local
+ * name, the namespace URIs are resolved by {@link XPathSubsetMatcher}.
+ */
+class XPathStep {
+  private static final String NS = "xmlns";
+  private static final String C = ":";
+
+  private final boolean bDescendant;
+  private final boolean bAttribute;
+  private final String uri;
+  private final String localName;
+  private final String[] attrUris;
+  private final String[] attrNames;
+  private final String[] attrValues;
+
+  /**
+   * Constructor.
+   *
+   * @param bDescendant
+   *          true if the step follows "//", false if it follows "/"
+   * @param bAttribute
+   *          true if the step selects attributes, false if it selects elements
+   * @param uri
+   *          namespace URI, or null for any namespace
+   * @param localName
+   *          local name, or null for any name
+   * @param attrUris
+   *          namespace URIs of the tested attributes
+   * @param attrNames
+   *          local names of the tested attributes
+   * @param attrValues
+   *          values of the tested attributes, null if the attribute must only
+   *          be present
+   */
+  public XPathStep(boolean bDescendant, boolean bAttribute, String uri,
+      String localName, String[] attrUris, String[] attrNames,
+      String[] attrValues) {
+    this.bDescendant = bDescendant;
+    this.bAttribute = bAttribute;
+    this.uri = uri;
+    this.localName = localName;
+    this.attrUris = attrUris;
+    this.attrNames = attrNames;
+    this.attrValues = attrValues;
+  }
+
+  /**
+   * Returns whether the step follows "//".
+   *
+   * @return Returns true if the node of the step is any descendant of the node
+   *         of the previous step, false if it is a child
+   */
+  public boolean isDescendant() {
+    return bDescendant;
+  }
+
+  /**
+   * Returns whether the step selects attributes.
+   *
+   * @return Returns true for attributes, false for elements
+   */
+  public boolean isAttribute() {
+    return bAttribute;
+  }
+
+  /**
+   * Returns whether an element or an attribute passes the tests of the step.
+   * The type of the node is not checked.
+   *
+   * @param node
+   *          element or attribute
+   * @param nodeUri
+   *          namespace URI of the node
+   * @param nodeLocalName
+   *          local name of the node
+   * @param matcher
+   *          resolver of the namespace URIs of the attributes of the element
+   *
+   * @return Returns true if the node matches, false - otherwise
+   */
+  public boolean matches(Node node, String nodeUri, String nodeLocalName,
+      XPathSubsetMatcher matcher) {
+    if ((localName != null && !localName.equals(nodeLocalName))
+        || (uri != null && !uri.equals(nodeUri))) {
+      return false;
+    }
+    for (int i = 0; i < attrNames.length; i++) {
+      Node attr = getAttribute(node, attrUris[i], attrNames[i], matcher);
+      if (attr == null
+          || (attrValues[i] != null && !attrValues[i].equals(attr
+              .getNodeValue()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns an attribute of an element.
+   *
+   * @param node
+   *          element
+   * @param uri
+   *          namespace URI
+   * @param name
+   *          local name
+   * @param matcher
+   *          resolver of the namespace URIs
+   *
+   * @return Returns the attribute, or null if there is none
+   */
+  private static Node getAttribute(Node node, String uri, String name,
+      XPathSubsetMatcher matcher) {
+    NamedNodeMap attrs = node.getAttributes();
+    for (int i = 0; i < attrs.getLength(); i++) {
+      Node attr = attrs.item(i);
+      if (!isNamespaceDeclaration(attr) && name.equals(getLocalName(attr))
+          && uri.equals(matcher.getAttributeURI(attr))) {
+        return attr;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether an attribute is a namespace declaration.
+   *
+   * @param attr
+   *          attribute
+   *
+   * @return Returns true for a namespace declaration, false - otherwise
+   */
+  static boolean isNamespaceDeclaration(Node attr) {
+    String name = attr.getNodeName();
+    return name.equals(NS) || name.startsWith(NS + C);
+  }
+
+  /**
+   * Returns the local name of a node.
+   *
+   * @param node
+   *          element or attribute
+   *
+   * @return Returns the local name
+   */
+  static String getLocalName(Node node) {
+    if (node.getLocalName() != null) {
+      return node.getLocalName();
+    }
+    String name = node.getNodeName();
+    return name.substring(name.indexOf(C) + 1);
+  }
+}
@@ -0,0 +1,221 @@
+package ru.relex.c14n2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.traversal.NodeFilter;
+
+/**
+ * The node filter compiled from a subset of XPath (see
+ * {@link DOMCanonicalizer#canonicalize(org.w3c.dom.Document, NodeFilter, CanonicalizationProfile, CanonicalizerSink)}
+ * ).
+ *
+ * The elements selected by the inclusion expression are accepted with their
+ * subtrees, the other nodes are skipped. The elements and the attributes
+ * selected by the exclusion expression are rejected. An expression is a union
+ * ("|") of absolute location paths of child ("/") and descendant ("//")
+ * steps, for example "//ds:Signature | /doc/item[@id='1']". A step is a name
+ * test ("name", "prefix:name", "prefix:*" or "*") of elements, the element
+ * steps can have attribute tests ("[@name]" or "[@name='value']"). The last
+ * step of the exclusion expression can be a name test of attributes
+ * ("@name"), attributes are never selected by the inclusion expression.
+ *
+ * The canonicalizer evaluates the expressions during the walk over the
+ * document: the steps matched by an element are derived from the steps
+ * matched by its parent, so an element costs time proportional to the number
+ * of steps, and no node lists are built. The filter is not modified after it
+ * is created, so it can be shared between threads.
+ */
+public final class XPathSubsetFilter implements NodeFilter {
+  private final XPathStep[] steps;
+  private final long[] firstSteps;
+  private final long[] includeSteps;
+  private final long[] excludeSteps;
+  private final boolean bIncludeAll;
+  private final boolean bAttributeSteps;
+
+  /**
+   * Constructor.
+   *
+   * @param includeXPath
+   *          inclusion expression, or null to include the whole document
+   * @param excludeXPath
+   *          exclusion expression, or null
+   */
+  public XPathSubsetFilter(String includeXPath, String excludeXPath) {
+    this(includeXPath, excludeXPath, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param includeXPath
+   *          inclusion expression, or null to include the whole document
+   * @param excludeXPath
+   *          exclusion expression, or null
+   * @param namespaces
+   *          namespace URIs by prefixes of the expressions, or null
+   *
+   * @throws IllegalArgumentException
+   *           if an expression is not supported or has an unbound prefix, or
+   *           if the inclusion expression selects attributes
+   */
+  public XPathSubsetFilter(String includeXPath, String excludeXPath,
+      Map<String, String> namespaces) {
+    List<XPathStep[]> include = parse(includeXPath, namespaces);
+    List<XPathStep[]> exclude = parse(excludeXPath, namespaces);
+    for (XPathStep[] path : include) {
+      if (path[path.length - 1].isAttribute()) {
+        throw new IllegalArgumentException(
+            "Attribute step in the inclusion expression: " + includeXPath);
+      }
+    }
+    List<XPathStep> all = new ArrayList<XPathStep>();
+    List<XPathStep[]> paths = new ArrayList<XPathStep[]>(include);
+    paths.addAll(exclude);
+    for (XPathStep[] path : paths) {
+      for (XPathStep step : path) {
+        all.add(step);
+      }
+    }
+    steps = all.toArray(new XPathStep[all.size()]);
+    int words = (steps.length + 63) / 64;
+    firstSteps = new long[words];
+    includeSteps = new long[words];
+    excludeSteps = new long[words];
+    boolean bAttributes = false;
+    int idx = 0;
+    for (int i = 0; i < paths.size(); i++) {
+      XPathStep[] path = paths.get(i);
+      firstSteps[idx >> 6] |= 1L << idx;
+      idx += path.length;
+      long[] last = i < include.size() ? includeSteps : excludeSteps;
+      last[(idx - 1) >> 6] |= 1L << (idx - 1);
+      bAttributes |= path[path.length - 1].isAttribute();
+    }
+    bIncludeAll = includeXPath == null;
+    bAttributeSteps = bAttributes;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The node is matched against the chain of its ancestors. The canonicalizer
+   * does not call this method, it keeps the matched steps of the ancestors
+   * instead (see {@link XPathSubsetMatcher}).
+   */
+  @Override
+  public short acceptNode(Node n) {
+    return new XPathSubsetMatcher(this).match(n);
+  }
+
+  /**
+   * Parses an expression.
+   *
+   * @param xpath
+   *          expression, or null
+   * @param namespaces
+   *          namespace URIs by prefixes, or null
+   *
+   * @return Returns the location paths, none for a null expression
+   */
+  private static List<XPathStep[]> parse(String xpath,
+      Map<String, String> namespaces) {
+    if (xpath == null) {
+      return new ArrayList<XPathStep[]>();
+    }
+    return new XPathSubsetParser(xpath, namespaces).parse();
+  }
+
+  /**
+   * Returns the steps of all location paths, the inclusion paths first.
+   *
+   * @return Returns the steps
+   */
+  XPathStep[] getSteps() {
+    return steps;
+  }
+
+  /**
+   * Returns the number of the words of the sets of steps.
+   *
+   * @return Returns the number of words
+   */
+  int getWordCount() {
+    return firstSteps.length;
+  }
+
+  /**
+   * Returns whether a step is the first step of a location path.
+   *
+   * @param idx
+   *          index of the step
+   *
+   * @return Returns true for the first step, false - otherwise
+   */
+  boolean isFirstStep(int idx) {
+    return (firstSteps[idx >> 6] & (1L << idx)) != 0;
+  }
+
+  /**
+   * Returns whether the exclusion expression has attribute steps.
+   *
+   * @return Returns true if attributes can be rejected, false - otherwise
+   */
+  boolean hasAttributeSteps() {
+    return bAttributeSteps;
+  }
+
+  /**
+   * Returns the result of a node which matches no location path.
+   *
+   * @return Returns FILTER_ACCEPT without the inclusion expression,
+   *         FILTER_SKIP - otherwise
+   */
+  short getDefaultResult() {
+    return bIncludeAll ? FILTER_ACCEPT : FILTER_SKIP;
+  }
+
+  /**
+   * Returns the result of an element.
+   *
+   * @param states
+   *          sets of steps
+   * @param off
+   *          offset of the set of the steps matched by the element
+   *
+   * @return Returns the result of the filter
+   */
+  short getResult(long[] states, int off) {
+    if (intersects(states, off, excludeSteps)) {
+      return FILTER_REJECT;
+    }
+    if (bIncludeAll || intersects(states, off, includeSteps)) {
+      return FILTER_ACCEPT;
+    }
+    return FILTER_SKIP;
+  }
+
+  /**
+   * Returns whether two sets of steps intersect.
+   *
+   * @param states
+   *          sets of steps
+   * @param off
+   *          offset of the first set
+   * @param set
+   *          second set
+   *
+   * @return Returns true if a step is in both sets, false - otherwise
+   */
+  private static boolean intersects(long[] states, int off, long[] set) {
+    for (int i = 0; i < set.length; i++) {
+      if ((states[off + i] & set[i]) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,366 @@
+package ru.relex.c14n2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.traversal.NodeFilter;
+
+/**
+ * The evaluation of {@link XPathSubsetFilter} during a walk over a document.
+ *
+ * For the element of every level of the walk two sets of steps are kept: the
+ * steps matched by the element, and the steps matched by the element or one of
+ * its ancestors. A step is matched by an element if the element passes the
+ * tests of the step and its parent matches the previous step (the previous
+ * step after "/"), or the parent or one of its ancestors matches it (after
+ * "//"). So the sets of an element are derived from the sets of its parent in
+ * time proportional to the number of steps.
+ *
+ * The namespace declarations of a document without namespace support are kept
+ * in scope by level, so a prefix is resolved by one lookup. The attributes
+ * rejected by the attribute steps are found when the element is visited and
+ * reported when the element of the level is output.
+ */
+class XPathSubsetMatcher implements NodeFilter {
+  private static final String NS = "xmlns";
+  private static final String C = ":";
+
+  private final XPathSubsetFilter filter;
+  private final XPathStep[] steps;
+  private final int words;
+
+  // the steps matched by the element and the steps matched by the element or
+  // an ancestor, for every level
+  private long[] states;
+  private Node[] elements = new Node[16];
+  private Node[][] rejected = new Node[16][];
+  private int level = -1;
+
+  private final Map<String, String> bindings = new HashMap<String, String>();
+  private String[] undoPrefixes = new String[8];
+  private String[] undoUris = new String[8];
+  private int[] undoLevels = new int[8];
+  private int undoSize = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param filter
+   *          compiled filter
+   */
+  public XPathSubsetMatcher(XPathSubsetFilter filter) {
+    this.filter = filter;
+    this.steps = filter.getSteps();
+    this.words = filter.getWordCount();
+    this.states = new long[16 * 2 * words];
+  }
+
+  /**
+   * Visits a node of the walk. The sets of steps of an element are derived
+   * from the sets of the element of the previous level if it is the parent,
+   * the level of the element is selected.
+   *
+   * @param node
+   *          DOM node
+   * @param nodeLevel
+   *          level of the node in the walk
+   *
+   * @return Returns the result of the filter
+   */
+  public short push(Node node, int nodeLevel) {
+    if (node.getNodeType() != Node.ELEMENT_NODE) {
+      return filter.getDefaultResult();
+    }
+    if (nodeLevel >= elements.length) {
+      int length = Math.max(elements.length * 2, nodeLevel + 1);
+      elements = Arrays.copyOf(elements, length);
+      rejected = Arrays.copyOf(rejected, length);
+      states = Arrays.copyOf(states, length * 2 * words);
+    }
+    popDeclarations(nodeLevel);
+    if (node.getLocalName() == null) {
+      pushDeclarations(node, nodeLevel);
+    }
+    Node parent = node.getParentNode();
+    boolean bParent = nodeLevel > 0 && elements[nodeLevel - 1] == parent;
+    boolean bDocumentParent = parent != null
+        && parent.getNodeType() == Node.DOCUMENT_NODE;
+    int off = nodeLevel * 2 * words;
+    int parentOff = off - 2 * words;
+    String uri = getElementURI(node);
+    String localName = XPathStep.getLocalName(node);
+    for (int i = 0; i < words; i++) {
+      states[off + i] = 0;
+    }
+    for (int j = 0; j < steps.length; j++) {
+      XPathStep step = steps[j];
+      if (step.isAttribute()) {
+        continue;
+      }
+      boolean bPreceded;
+      if (filter.isFirstStep(j)) {
+        bPreceded = step.isDescendant() || bDocumentParent;
+      } else {
+        bPreceded = bParent
+            && contains(parentOff + (step.isDescendant() ? words : 0), j - 1);
+      }
+      if (bPreceded && step.matches(node, uri, localName, this)) {
+        states[off + (j >> 6)] |= 1L << j;
+      }
+    }
+    for (int i = 0; i < words; i++) {
+      states[off + words + i] = states[off + i]
+          | (bParent ? states[parentOff + words + i] : 0);
+    }
+    elements[nodeLevel] = node;
+    rejected[nodeLevel] = filter.hasAttributeSteps() ? findRejected(node, off)
+        : null;
+    level = nodeLevel;
+    return filter.getResult(states, off);
+  }
+
+  /**
+   * Selects the level of the element which attributes are filtered by
+   * {@link #acceptNode(Node)}.
+   *
+   * @param nodeLevel
+   *          level of an element visited by {@link #push(Node, int)}
+   */
+  public void select(int nodeLevel) {
+    level = nodeLevel;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The attributes of the element of the selected level are looked up in the
+   * attributes rejected when it was visited, other nodes are matched against
+   * their ancestors.
+   */
+  @Override
+  public short acceptNode(Node n) {
+    if (n instanceof Attr && level >= 0
+        && elements[level] == ((Attr) n).getOwnerElement()) {
+      return isRejected(n) ? FILTER_REJECT : filter.getDefaultResult();
+    }
+    return new XPathSubsetMatcher(filter).match(n);
+  }
+
+  /**
+   * Matches a node against the chain of its ancestors.
+   *
+   * @param n
+   *          DOM node
+   *
+   * @return Returns the result of the filter
+   */
+  short match(Node n) {
+    Node element = n instanceof Attr ? ((Attr) n).getOwnerElement() : n;
+    if (element == null || element.getNodeType() != Node.ELEMENT_NODE) {
+      return filter.getDefaultResult();
+    }
+    List<Node> ancestors = new ArrayList<Node>();
+    for (Node a = element; a != null && a.getNodeType() == Node.ELEMENT_NODE; a = a
+        .getParentNode()) {
+      ancestors.add(a);
+    }
+    short result = 0;
+    for (int i = ancestors.size() - 1; i >= 0; i--) {
+      result = push(ancestors.get(i), ancestors.size() - i);
+    }
+    if (n instanceof Attr) {
+      return isRejected(n) ? FILTER_REJECT : filter.getDefaultResult();
+    }
+    return result;
+  }
+
+  /**
+   * Returns the namespace URI of an attribute of the current element.
+   *
+   * @param attr
+   *          attribute
+   *
+   * @return Returns the namespace URI, empty if there is no namespace
+   */
+  String getAttributeURI(Node attr) {
+    if (attr.getLocalName() != null) {
+      return attr.getNamespaceURI() == null ? "" : attr.getNamespaceURI();
+    }
+    String prefix = getPrefix(attr);
+    return prefix.isEmpty() ? "" : resolve(prefix);
+  }
+
+  /**
+   * Returns the namespace URI of an element.
+   *
+   * @param node
+   *          element
+   *
+   * @return Returns the namespace URI, empty if there is no namespace
+   */
+  private String getElementURI(Node node) {
+    if (node.getLocalName() != null) {
+      return node.getNamespaceURI() == null ? "" : node.getNamespaceURI();
+    }
+    return resolve(getPrefix(node));
+  }
+
+  /**
+   * Returns the namespace URI of a prefix in scope.
+   *
+   * @param prefix
+   *          prefix, empty for the default namespace
+   *
+   * @return Returns the namespace URI, empty if the prefix is not declared
+   */
+  private String resolve(String prefix) {
+    if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+      return XMLConstants.XML_NS_URI;
+    }
+    String uri = bindings.get(prefix);
+    return uri == null ? "" : uri;
+  }
+
+  /**
+   * Returns the prefix of the qualified name of a node without namespace
+   * support.
+   *
+   * @param node
+   *          element or attribute
+   *
+   * @return Returns the prefix, empty if there is none
+   */
+  private static String getPrefix(Node node) {
+    String name = node.getNodeName();
+    int idx = name.indexOf(C);
+    return idx > -1 ? name.substring(0, idx) : "";
+  }
+
+  /**
+   * Finds the attributes of an element which are rejected by the attribute
+   * steps.
+   *
+   * @param node
+   *          element
+   * @param off
+   *          offset of the sets of the steps of the element
+   *
+   * @return Returns the rejected attributes, or null if there are none
+   */
+  private Node[] findRejected(Node node, int off) {
+    List<Node> list = null;
+    NamedNodeMap attrs = node.getAttributes();
+    for (int j = 0; j < steps.length; j++) {
+      XPathStep step = steps[j];
+      if (!step.isAttribute()
+          || (filter.isFirstStep(j) ? !step.isDescendant() : !contains(off
+              + (step.isDescendant() ? words : 0), j - 1))) {
+        continue;
+      }
+      for (int i = 0; i < attrs.getLength(); i++) {
+        Node attr = attrs.item(i);
+        if (!XPathStep.isNamespaceDeclaration(attr)
+            && step.matches(attr, getAttributeURI(attr),
+                XPathStep.getLocalName(attr), this)) {
+          if (list == null) {
+            list = new ArrayList<Node>();
+          }
+          list.add(attr);
+        }
+      }
+    }
+    return list == null ? null : list.toArray(new Node[list.size()]);
+  }
+
+  /**
+   * Returns whether an attribute of the element of the selected level is
+   * rejected.
+   *
+   * @param attr
+   *          attribute
+   *
+   * @return Returns true if the attribute is rejected, false - otherwise
+   */
+  private boolean isRejected(Node attr) {
+    Node[] list = rejected[level];
+    if (list != null) {
+      for (Node n : list) {
+        if (n == attr) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether a step is in a set.
+   *
+   * @param off
+   *          offset of the set
+   * @param idx
+   *          index of the step
+   *
+   * @return Returns true if the step is in the set, false - otherwise
+   */
+  private boolean contains(int off, int idx) {
+    return (states[off + (idx >> 6)] & (1L << idx)) != 0;
+  }
+
+  /**
+   * Declares the namespaces of an element without namespace support.
+   *
+   * @param node
+   *          element
+   * @param nodeLevel
+   *          level of the element
+   */
+  private void pushDeclarations(Node node, int nodeLevel) {
+    NamedNodeMap attrs = node.getAttributes();
+    for (int i = 0; i < attrs.getLength(); i++) {
+      Node attr = attrs.item(i);
+      if (!XPathStep.isNamespaceDeclaration(attr)) {
+        continue;
+      }
+      String name = attr.getNodeName();
+      String prefix = name.equals(NS) ? "" : name.substring(NS.length() + 1);
+      if (undoSize == undoLevels.length) {
+        undoPrefixes = Arrays.copyOf(undoPrefixes, undoSize * 2);
+        undoUris = Arrays.copyOf(undoUris, undoSize * 2);
+        undoLevels = Arrays.copyOf(undoLevels, undoSize * 2);
+      }
+      undoPrefixes[undoSize] = prefix;
+      undoUris[undoSize] = bindings.put(prefix, attr.getNodeValue());
+      undoLevels[undoSize] = nodeLevel;
+      undoSize++;
+    }
+  }
+
+  /**
+   * Removes the namespace declarations of the elements with the level which
+   * is greater than or equal to the specified level.
+   *
+   * @param nodeLevel
+   *          level of the element
+   */
+  private void popDeclarations(int nodeLevel) {
+    while (undoSize > 0 && undoLevels[undoSize - 1] >= nodeLevel) {
+      undoSize--;
+      if (undoUris[undoSize] == null) {
+        bindings.remove(undoPrefixes[undoSize]);
+      } else {
+        bindings.put(undoPrefixes[undoSize], undoUris[undoSize]);
+      }
+      undoPrefixes[undoSize] = null;
+      undoUris[undoSize] = null;
+    }
+  }
+}
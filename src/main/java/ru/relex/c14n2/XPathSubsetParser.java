@@ -0,0 +1,232 @@
+package ru.relex.c14n2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+
+/**
+ * The parser of the XPath subset of {@link XPathSubsetFilter}.
+ *
+ * The supported expressions are unions of absolute location paths of child
+ * ("/") and descendant ("//") steps. A step is a name test ("name",
+ * "prefix:name", "prefix:*" or "*") of elements, the last step can be a name
+ * test of attributes ("@name"). The element steps can have attribute tests
+ * ("[@name]" or "[@name='value']").
+ */
+class XPathSubsetParser {
+  private final String xpath;
+  private final Map<String, String> namespaces;
+  private int pos = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param xpath
+   *          XPath expression
+   * @param namespaces
+   *          namespace URIs by prefixes of the expression, or null
+   */
+  public XPathSubsetParser(String xpath, Map<String, String> namespaces) {
+    this.xpath = xpath;
+    this.namespaces = namespaces;
+  }
+
+  /**
+   * Parses the expression.
+   *
+   * @return Returns the location paths of the union
+   */
+  public List<XPathStep[]> parse() {
+    List<XPathStep[]> paths = new ArrayList<XPathStep[]>();
+    do {
+      paths.add(parsePath());
+    } while (skip('|'));
+    skipSpaces();
+    if (pos < xpath.length()) {
+      throw error();
+    }
+    return paths;
+  }
+
+  /**
+   * Parses a location path.
+   *
+   * @return Returns the steps of the path
+   */
+  private XPathStep[] parsePath() {
+    List<XPathStep> steps = new ArrayList<XPathStep>();
+    while (skip('/')) {
+      boolean bDescendant = pos < xpath.length() && xpath.charAt(pos) == '/';
+      if (bDescendant) {
+        pos++;
+      }
+      if (!steps.isEmpty() && steps.get(steps.size() - 1).isAttribute()) {
+        throw error();
+      }
+      steps.add(parseStep(bDescendant));
+    }
+    if (steps.isEmpty()) {
+      throw error();
+    }
+    return steps.toArray(new XPathStep[steps.size()]);
+  }
+
+  /**
+   * Parses a step.
+   *
+   * @param bDescendant
+   *          true if the step follows "//"
+   *
+   * @return Returns the step
+   */
+  private XPathStep parseStep(boolean bDescendant) {
+    boolean bAttribute = skip('@');
+    String[] name = parseNameTest(true);
+    List<String> attrUris = new ArrayList<String>();
+    List<String> attrNames = new ArrayList<String>();
+    List<String> attrValues = new ArrayList<String>();
+    while (!bAttribute && skip('[')) {
+      if (!skip('@')) {
+        throw error();
+      }
+      String[] attrName = parseNameTest(false);
+      attrUris.add(attrName[0]);
+      attrNames.add(attrName[1]);
+      attrValues.add(skip('=') ? parseLiteral() : null);
+      if (!skip(']')) {
+        throw error();
+      }
+    }
+    return new XPathStep(bDescendant, bAttribute, name[0], name[1],
+        attrUris.toArray(new String[attrUris.size()]),
+        attrNames.toArray(new String[attrNames.size()]),
+        attrValues.toArray(new String[attrValues.size()]));
+  }
+
+  /**
+   * Parses a name test.
+   *
+   * @param bWildcard
+   *          true if "*" and "prefix:*" are allowed
+   *
+   * @return Returns the namespace URI and the local name, null matches any
+   *         value
+   */
+  private String[] parseNameTest(boolean bWildcard) {
+    if (bWildcard && skip('*')) {
+      return new String[] { null, null };
+    }
+    String name = parseNCName();
+    if (pos < xpath.length() && xpath.charAt(pos) == ':') {
+      pos++;
+      String uri = getNamespaceURI(name);
+      if (bWildcard && pos < xpath.length() && xpath.charAt(pos) == '*') {
+        pos++;
+        return new String[] { uri, null };
+      }
+      return new String[] { uri, parseNCName() };
+    }
+    return new String[] { "", name };
+  }
+
+  /**
+   * Parses a name without a prefix.
+   *
+   * @return Returns the name
+   */
+  private String parseNCName() {
+    skipSpaces();
+    int start = pos;
+    while (pos < xpath.length()) {
+      char c = xpath.charAt(pos);
+      if (!Character.isLetter(c) && c != '_'
+          && (pos == start || (!Character.isDigit(c) && c != '-' && c != '.'))) {
+        break;
+      }
+      pos++;
+    }
+    if (pos == start) {
+      throw error();
+    }
+    return xpath.substring(start, pos);
+  }
+
+  /**
+   * Parses a string literal in quotation marks or apostrophes.
+   *
+   * @return Returns the string
+   */
+  private String parseLiteral() {
+    skipSpaces();
+    if (pos == xpath.length()
+        || (xpath.charAt(pos) != '\'' && xpath.charAt(pos) != '"')) {
+      throw error();
+    }
+    int end = xpath.indexOf(xpath.charAt(pos), pos + 1);
+    if (end < 0) {
+      throw error();
+    }
+    String value = xpath.substring(pos + 1, end);
+    pos = end + 1;
+    return value;
+  }
+
+  /**
+   * Returns the namespace URI of a prefix of the expression.
+   *
+   * @param prefix
+   *          prefix
+   *
+   * @return Returns the namespace URI
+   */
+  private String getNamespaceURI(String prefix) {
+    if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+      return XMLConstants.XML_NS_URI;
+    }
+    String uri = namespaces != null ? namespaces.get(prefix) : null;
+    if (uri == null) {
+      throw new IllegalArgumentException("Unbound prefix " + prefix
+          + " in XPath expression: " + xpath);
+    }
+    return uri;
+  }
+
+  /**
+   * Skips a character after optional whitespace.
+   *
+   * @param c
+   *          character
+   *
+   * @return Returns true if the character is skipped, false if there is
+   *         another character
+   */
+  private boolean skip(char c) {
+    skipSpaces();
+    if (pos < xpath.length() && xpath.charAt(pos) == c) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Skips whitespace.
+   */
+  private void skipSpaces() {
+    while (pos < xpath.length() && Character.isWhitespace(xpath.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  /**
+   * Creates the exception of an unsupported expression.
+   *
+   * @return Returns the exception
+   */
+  private IllegalArgumentException error() {
+    return new IllegalArgumentException("Unsupported XPath expression at "
+        + pos + ": " + xpath);
+  }
+}
@@ -1,12 +1,33 @@
 package ru.relex.c14n2;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -16,8 +37,11 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.traversal.NodeFilter;
+import org.xml.sax.InputSource;
 
 public class CanonicalizerTest {
+  private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
 
   @Test(threadPoolSize = 10, invocationCount = 1000, invocationTimeOut = 0)
   public void testMultiThread() {
@@ -357,6 +381,38 @@ public class CanonicalizerTest {
         }));
   }
 
+  @Test
+  public void testN3PrefixIncl2() {
+    Assert.assertTrue(processTest("15r", "inC14N3", "c14nPrefix",
+        new ICanonicalizerExcludeList() {
+
+          @Override
+          public String getExcludeListName() {
+            return "incl2";
+          }
+
+          @Override
+          public List<Node> getIncludeList(Document doc) {
+            List<Node> nodes = new ArrayList<Node>();
+            NodeList nl = doc.getChildNodes().item(1).getChildNodes();
+            // e3
+            nodes.add(nl.item(5));
+            // e7
+            nodes.add(nl.item(11).getChildNodes().item(1));
+            return nodes;
+          }
+
+          @Override
+          public List<Node> getExcludeList(Document doc) {
+            List<Node> nodes = new ArrayList<Node>();
+            NodeList nl = doc.getChildNodes().item(1).getChildNodes();
+            // e7
+            nodes.add(nl.item(11).getChildNodes().item(1));
+            return nodes;
+          }
+        }));
+  }
+
   @Test
   public void testFlyXmlDefault() {
     try {
@@ -402,6 +458,574 @@ public class CanonicalizerTest {
     Assert.assertTrue(processTest("14r", "inNsDefault_1", "c14nPrefix"));
   }
 
+  @Test
+  public void testN6DefaultOutputStream() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DOMCanonicalizer.canonicalize(parse("inC14N6"), getParams("c14nDefault"),
+        out);
+    Assert.assertEquals(out.toByteArray(), readBase("inC14N6", "c14nDefault"));
+  }
+
+  @Test
+  public void testN6DefaultWriter() throws Exception {
+    StringWriter writer = new StringWriter();
+    DOMCanonicalizer.canonicalize(parse("inC14N6"), getParams("c14nDefault"),
+        writer);
+    Assert.assertEquals(writer.toString().getBytes("UTF-8"),
+        readBase("inC14N6", "c14nDefault"));
+  }
+
+  @Test
+  public void testN3PrefixSink() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DOMCanonicalizer.canonicalize(parse("inC14N3"), getParams("c14nPrefix"),
+        new CanonicalizerSink() {
+          @Override
+          public void write(byte[] b, int off, int len) {
+            out.write(b, off, len);
+          }
+
+          @Override
+          public void flush() {
+          }
+        });
+    Assert.assertEquals(out.toByteArray(), readBase("inC14N3", "c14nPrefix"));
+  }
+
+  @Test
+  public void testWsseDefaultDigest() throws Exception {
+    byte[] digest = DOMCanonicalizer.digest(parse("inWsse"),
+        getParams("c14nDefault"), MessageDigest.getInstance("SHA-256"));
+    Assert.assertEquals(digest, MessageDigest.getInstance("SHA-256").digest(
+        readBase("inWsse", "c14nDefault")));
+  }
+
+  @Test
+  public void testWssePrefixSignature() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    KeyPair keyPair = generator.generateKeyPair();
+
+    Signature signature = Signature.getInstance("SHA256withRSA");
+    signature.initSign(keyPair.getPrivate());
+    DOMCanonicalizer.canonicalize(parse("inWsse"), getParams("c14nPrefix"),
+        signature);
+    byte[] value = signature.sign();
+
+    signature.initVerify(keyPair.getPublic());
+    signature.update(readBase("inWsse", "c14nPrefix"));
+    Assert.assertTrue(signature.verify(value));
+  }
+
+  @Test
+  public void testWriterSinkBlocks() throws Exception {
+    String text = "a\u00e9\u0436\u20ac\ud834\udd1eb\u00e9\u20ac\ud834\udd1e";
+    StringWriter sw = new StringWriter();
+    CanonicalWriter writer = new CanonicalWriter(new WriterSink(sw), 5);
+    writer.write(text);
+    writer.flush();
+    Assert.assertEquals(sw.toString(), text);
+  }
+
+  @Test
+  public void testNsContentXPathCache() throws Exception {
+    XPathCache cache = XPathCache.getInstance();
+    Assert.assertTrue(processTest("30", "inNsContent",
+        "c14nPrefixQnameXpathElem"));
+    long hits = cache.getHitCount();
+    long misses = cache.getMissCount();
+    Assert.assertTrue(processTest("30", "inNsContent",
+        "c14nPrefixQnameXpathElem"));
+    Assert.assertTrue(cache.getHitCount() > hits);
+    Assert.assertEquals(cache.getMissCount(), misses);
+  }
+
+  @Test
+  public void testInvalidXPathElement() throws Exception {
+    String xml = "<a:foo xmlns:a=\"http://a\"><d:IncludedXPath"
+        + " xmlns:d=\"http://www.w3.org/2010/xmldsig2#\">/a:x[</d:IncludedXPath>"
+        + "</a:foo>";
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new InputSource(new StringReader(xml)));
+    Parameters params = getParams("c14nPrefixQnameXpathElem");
+    XPathCache cache = XPathCache.getInstance();
+    Assert.assertEquals(DOMCanonicalizer.canonicalize(doc, params),
+        "<n0:foo xmlns:n0=\"http://a\"><n1:IncludedXPath"
+            + " xmlns:n1=\"http://www.w3.org/2010/xmldsig2#\">/a:x[</n1:IncludedXPath>"
+            + "</n0:foo>");
+    // the expression which cannot be parsed is not parsed again
+    long misses = cache.getMissCount();
+    DOMCanonicalizer.canonicalize(doc, params);
+    Assert.assertEquals(cache.getMissCount(), misses);
+    Assert.assertNull(cache.get("/a:x["));
+  }
+
+  @Test
+  public void testXPathCacheEviction() {
+    XPathCache cache = new XPathCache(1);
+    NSContext nsContext = cache.get("/a:b");
+    Assert.assertEquals(nsContext.getXpathNs(), Arrays.asList("a"));
+    Assert.assertSame(cache.get("/a:b"), nsContext);
+    cache.get("/c:d");
+    Assert.assertEquals(cache.size(), 1);
+    Assert.assertEquals(cache.getHitCount(), 1);
+    Assert.assertEquals(cache.getMissCount(), 2);
+    Assert.assertEquals(cache.getEvictionCount(), 1);
+    Assert.assertFalse(cache.get("/a:b") == nsContext);
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    StringBuilder sb = new StringBuilder(
+        "<a:root xmlns:a=\"urn:a\" xmlns=\"urn:d\">");
+    for (int i = 0; i < 400; i++) {
+      // a new namespace every 50 items is numbered by a later task
+      sb.append("<item xmlns:b=\"urn:b").append(i / 50).append("\" b:id=\"")
+          .append(i).append("\">");
+      for (int j = 0; j < 10; j++) {
+        sb.append("<a:v b:k=\"x\">t").append(j).append(" &amp; </a:v>");
+      }
+      sb.append("<!-- c --></item>\n");
+    }
+    sb.append("</a:root>");
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new InputSource(new StringReader(sb.toString())));
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (String paramName : new String[] { "c14nDefault", "c14nPrefix" }) {
+        CanonicalizationProfile profile = new CanonicalizationProfile(
+            getParams(paramName));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DOMCanonicalizer.canonicalize(doc, null, null, profile, out, executor);
+        Assert.assertEquals(out.toByteArray(), DOMCanonicalizer.canonicalize(
+            doc, profile).getBytes("UTF-8"));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testBatchPrefix() throws Exception {
+    String[] inFileNames = { "inC14N3", "inNsPushdown", "inNsDefault",
+        "inNsSort", "inNsRedecl", "inNsSuperfluous", "inNsXml", "inWsse" };
+    List<Document> docs = new ArrayList<Document>();
+    for (int i = 0; i < 5; i++) {
+      for (String inFileName : inFileNames) {
+        docs.add(parse(inFileName));
+      }
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      List<byte[]> results = DOMCanonicalizer.canonicalize(docs,
+          new CanonicalizationProfile(getParams("c14nPrefix")), executor);
+      Assert.assertEquals(results.size(), docs.size());
+      for (int i = 0; i < results.size(); i++) {
+        Assert.assertEquals(results.get(i), readBase(
+            inFileNames[i % inFileNames.length], "c14nPrefix"));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testNsContentProfileReuse() throws Exception {
+    Parameters params = getParams("c14nPrefixQnameXpathElem");
+    CanonicalizationProfile profile = new CanonicalizationProfile(params);
+    params.setPrefixRewrite(Parameters.NONE);
+    params.getQnameAwareXPathElements().clear();
+    for (int i = 0; i < 2; i++) {
+      Assert.assertEquals(DOMCanonicalizer.canonicalize(parse("inNsContent"),
+          profile).getBytes("UTF-8"), readBase("inNsContent",
+          "c14nPrefixQnameXpathElem"));
+    }
+  }
+
+  @Test
+  public void testDeepDocument() throws Exception {
+    int depth = 100000;
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .newDocument();
+    Node node = doc;
+    for (int i = 0; i < depth; i++) {
+      node = node.appendChild(doc.createElement("e"));
+    }
+    node.appendChild(doc.createTextNode("t"));
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      expected.append("<e>");
+    }
+    expected.append("t");
+    for (int i = 0; i < depth; i++) {
+      expected.append("</e>");
+    }
+    Assert.assertEquals(DOMCanonicalizer.canonicalize(doc, new Parameters()),
+        expected.toString());
+  }
+
+  @Test
+  public void testNsContentStream() throws Exception {
+    CanonicalizationProfile profile = new CanonicalizationProfile(
+        getParams("c14nPrefixQnameXpathElem"));
+    ReadableByteChannel channel = DOMCanonicalizer.openChannel(
+        parse("inNsContent"), null, null, profile);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuffer bb = ByteBuffer.allocate(7);
+    while (channel.read(bb) != -1) {
+      out.write(bb.array(), 0, bb.position());
+      bb.clear();
+    }
+    channel.close();
+    Assert.assertEquals(out.toByteArray(),
+        readBase("inNsContent", "c14nPrefixQnameXpathElem"));
+  }
+
+  @Test
+  public void testLazyStream() throws Exception {
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .newDocument();
+    Element root = doc.createElement("r");
+    doc.appendChild(root);
+    for (int i = 0; i < 100000; i++) {
+      root.appendChild(doc.createElement("e")).appendChild(
+          doc.createTextNode(String.valueOf(i)));
+    }
+    InputStream in = DOMCanonicalizer.openStream(doc,
+        CanonicalizationProfile.DEFAULT);
+    Assert.assertEquals(in.read(), '<');
+    // only the first block is produced
+    Assert.assertTrue(in.available() < CanonicalWriter.BUFFER_SIZE);
+    in.close();
+  }
+
+  @Test
+  public void testNsContentCache() throws Exception {
+    Document doc = parse("inNsContent");
+    CanonicalizationProfile profile = new CanonicalizationProfile(
+        getParams("c14nPrefixQnameXpathElem"));
+    CanonicalizationCache cache = new CanonicalizationCache(doc, profile);
+    for (int i = 0; i < 2; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      DOMCanonicalizer.canonicalize(cache, out);
+      Assert.assertEquals(out.toByteArray(),
+          readBase("inNsContent", "c14nPrefixQnameXpathElem"));
+    }
+    Assert.assertTrue(cache.getHitCount() > 0);
+
+    NodeList nl = doc.getDocumentElement().getElementsByTagName("*");
+    ((Element) nl.item(nl.getLength() - 1)).setAttribute("xmlns:n", "urn:n");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DOMCanonicalizer.canonicalize(cache, out);
+    Assert.assertEquals(out.toString("UTF-8"),
+        DOMCanonicalizer.canonicalize(doc, profile));
+    cache.detach();
+  }
+
+  @Test
+  public void testDigestReferences() throws Exception {
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new InputSource(new StringReader(
+            "<r xmlns:a=\"urn:a\"><b><a:c a:x=\"1\"><d/><d/></a:c></b></r>")));
+    final List<Long> elements = new ArrayList<Long>();
+    CanonicalizationProfile profile = new CanonicalizationProfile(
+        new Parameters(), new CanonicalizationListener() {
+          public void canonicalized(CanonicalizationMetrics m) {
+            elements.add(m.getElementCount());
+          }
+        });
+    Node b = doc.getDocumentElement().getFirstChild();
+    Node c = b.getFirstChild();
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    List<byte[]> digests = DOMCanonicalizer.digestReferences(doc,
+        Arrays.asList(c, b), profile, md);
+    // the nested reference copies the subtree of c
+    Assert.assertEquals(elements, Arrays.asList(5L, 2L));
+    Assert.assertEquals(digests.get(0), DOMCanonicalizer.digest(doc,
+        Arrays.asList(c), null, profile, md));
+    Assert.assertEquals(digests.get(1), DOMCanonicalizer.digest(doc,
+        Arrays.asList(b), null, profile, md));
+  }
+
+  @Test
+  public void testSubsets() throws Exception {
+    Document doc = parse("inNsContent");
+    CanonicalizationProfile profile = new CanonicalizationProfile(
+        getParams("c14nPrefixQnameXpathElem"));
+    Node child = doc.getDocumentElement().getElementsByTagName("*").item(0);
+    List<List<Node>> includeLists = Arrays.asList(null,
+        Arrays.asList(child), Arrays.asList(child));
+    List<List<Node>> excludeLists = Arrays.asList(null, null,
+        Arrays.asList(child.getFirstChild()));
+    List<OutputStream> outs = new ArrayList<OutputStream>();
+    for (int i = 0; i < includeLists.size(); i++) {
+      outs.add(new ByteArrayOutputStream());
+    }
+    DOMCanonicalizer.canonicalizeSubsets(doc, includeLists, excludeLists,
+        profile, outs);
+    for (int i = 0; i < includeLists.size(); i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      DOMCanonicalizer.canonicalize(doc, includeLists.get(i),
+          excludeLists.get(i), profile, out);
+      Assert.assertEquals(((ByteArrayOutputStream) outs.get(i)).toByteArray(),
+          out.toByteArray());
+    }
+  }
+
+  @Test
+  public void testNodeFilter() throws Exception {
+    Document doc = parse("inNsContent");
+    CanonicalizationProfile profile = new CanonicalizationProfile(
+        getParams("c14nPrefixQnameXpathElem"));
+    NodeList elements = doc.getDocumentElement().getElementsByTagName("*");
+    final Node bar = elements.item(0);
+    final Node xpath = elements.item(1);
+    Map<String, String> namespaces = new HashMap<String, String>();
+    namespaces.put("a", "http://a");
+    namespaces.put("dsig2", "http://www.w3.org/2010/xmldsig2#");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DOMCanonicalizer.canonicalize(doc, new XPathSubsetFilter("/a:foo/a:bar",
+        null, namespaces), profile, out);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    DOMCanonicalizer.canonicalize(doc, Arrays.asList(bar), null, profile,
+        expected);
+    Assert.assertEquals(out.toByteArray(), expected.toByteArray());
+
+    out.reset();
+    DOMCanonicalizer.canonicalize(doc, new XPathSubsetFilter(null,
+        "//dsig2:* | //*/@b", namespaces), profile, out);
+    expected.reset();
+    DOMCanonicalizer.canonicalize(doc, null, Arrays.asList(xpath), profile,
+        expected);
+    Assert.assertEquals(out.toByteArray(), expected.toByteArray());
+
+    // the subtree of a rejected node is not visited
+    out.reset();
+    DOMCanonicalizer.canonicalize(doc, new NodeFilter() {
+      public short acceptNode(Node n) {
+        Assert.assertFalse(n.getParentNode() == xpath);
+        return n == xpath ? FILTER_REJECT : FILTER_ACCEPT;
+      }
+    }, profile, out);
+    Assert.assertEquals(out.toByteArray(), expected.toByteArray());
+
+    // attributes are never included
+    try {
+      new XPathSubsetFilter("//a:bar | //*/@b", null, namespaces);
+      Assert.fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException e) {
+    }
+
+    // the steps are matched once per element of a deep document
+    doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .newDocument();
+    Node node = doc;
+    for (int i = 0; i < 10000; i++) {
+      node = node.appendChild(doc.createElement("e"));
+    }
+    profile = new CanonicalizationProfile(new Parameters());
+    out.reset();
+    DOMCanonicalizer.canonicalize(doc, new XPathSubsetFilter(null,
+        "//e//e//e//f | //e//e//e/@f"), profile, out);
+    expected.reset();
+    DOMCanonicalizer.canonicalize(doc, null, null, profile, expected);
+    Assert.assertEquals(out.toByteArray(), expected.toByteArray());
+  }
+
+  @Test
+  public void testNsContentMetrics() throws Exception {
+    final List<CanonicalizationMetrics> metrics = new ArrayList<CanonicalizationMetrics>();
+    CanonicalizationProfile profile = new CanonicalizationProfile(
+        getParams("c14nPrefixQnameXpathElem"), new CanonicalizationListener() {
+          public void canonicalized(CanonicalizationMetrics m) {
+            metrics.add(m);
+          }
+        });
+    XPathCache.getInstance().clear();
+    Document doc = parse("inNsContent");
+    byte[] bytes = DOMCanonicalizer.canonicalize(doc, profile).getBytes(
+        "UTF-8");
+    Assert.assertEquals(metrics.size(), 1);
+    CanonicalizationMetrics m = metrics.get(0);
+    Assert.assertEquals(m.getOutputByteCount(), bytes.length);
+    Assert.assertEquals(m.getElementCount(), 3);
+    Assert.assertTrue(m.getTextByteCount() > 0
+        && m.getTextByteCount() < bytes.length);
+    Assert.assertTrue(m.getNamespaceDeclarationCount() > 0);
+    Assert.assertTrue(m.getMaxNamespaceDepth() > 1);
+    // one XPath element is looked up once
+    Assert.assertEquals(m.getXPathCacheHitCount(), 0);
+    Assert.assertEquals(m.getXPathCacheMissCount(), 1);
+    DOMCanonicalizer.canonicalize(doc, profile);
+    m = metrics.get(1);
+    Assert.assertEquals(m.getXPathCacheHitCount(), 1);
+    Assert.assertEquals(m.getXPathCacheMissCount(), 0);
+  }
+
+  @Test
+  public void testN1CommentStAX() throws Exception {
+    Assert.assertTrue(processStAXTest("inC14N1", "c14nComment"));
+  }
+
+  @Test
+  public void testN2TrimStAX() throws Exception {
+    Assert.assertTrue(processStAXTest("inC14N2", "c14nTrim"));
+  }
+
+  @Test
+  public void testN3PrefixStAX() throws Exception {
+    Assert.assertTrue(processStAXTest("inC14N3", "c14nPrefix"));
+  }
+
+  @Test
+  public void testN4DefaultStAX() throws Exception {
+    Assert.assertTrue(processStAXTest("inC14N4", "c14nDefault"));
+  }
+
+  @Test
+  public void testN5TrimStAX() throws Exception {
+    Assert.assertTrue(processStAXTest("inC14N5", "c14nTrim"));
+  }
+
+  @Test
+  public void testNsXmlPrefixQnameStAX() throws Exception {
+    Assert.assertTrue(processStAXTest("inNsXml", "c14nPrefixQname"));
+  }
+
+  @Test
+  public void testNsContentPrefixQnameXPathElemStAX() throws Exception {
+    Assert.assertTrue(processStAXTest("inNsContent",
+        "c14nPrefixQnameXpathElem"));
+  }
+
+  @Test
+  public void testWssePrefixStAX() throws Exception {
+    Assert.assertTrue(processStAXTest("inWsse", "c14nPrefix"));
+  }
+
+  @Test
+  public void testCDataStAX() throws Exception {
+    String xml = "<r> <![CDATA[ a #xD b ]]> </r>";
+    String text = "<r>  a #xD b  </r>";
+    for (String paramName : Arrays.asList("c14nDefault", "c14nTrim")) {
+      Parameters params = getParams(paramName);
+      Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(REPORT_CDATA, Boolean.TRUE);
+      Assert.assertEquals(StAXCanonicalizer.canonicalize(
+          factory.createXMLStreamReader(new StringReader(xml)), params),
+          DOMCanonicalizer.canonicalize(doc, params));
+      // the CDATA section reported as characters is canonicalized as text
+      factory = XMLInputFactory.newInstance();
+      Assert.assertEquals(StAXCanonicalizer.canonicalize(
+          factory.createXMLStreamReader(new StringReader(xml)), params),
+          StAXCanonicalizer.canonicalize(
+              factory.createXMLStreamReader(new StringReader(text)), params));
+    }
+  }
+
+  @Test
+  public void testN1CommentSAX() throws Exception {
+    Assert.assertTrue(processSAXTest("inC14N1", "c14nComment"));
+  }
+
+  @Test
+  public void testN2TrimSAX() throws Exception {
+    Assert.assertTrue(processSAXTest("inC14N2", "c14nTrim"));
+  }
+
+  @Test
+  public void testN3PrefixSAX() throws Exception {
+    Assert.assertTrue(processSAXTest("inC14N3", "c14nPrefix"));
+  }
+
+  @Test
+  public void testN4DefaultSAX() throws Exception {
+    Assert.assertTrue(processSAXTest("inC14N4", "c14nDefault"));
+  }
+
+  @Test
+  public void testNsXmlPrefixQnameSAX() throws Exception {
+    Assert.assertTrue(processSAXTest("inNsXml", "c14nPrefixQname"));
+  }
+
+  @Test
+  public void testNsContentPrefixQnameXPathElemSAX() throws Exception {
+    Assert.assertTrue(processSAXTest("inNsContent",
+        "c14nPrefixQnameXpathElem"));
+  }
+
+  private static boolean processSAXTest(String inFileName, String paramName)
+      throws Exception {
+    String path = CanonicalizerTest.class.getProtectionDomain()
+        .getCodeSource().getLocation().getPath();
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    factory.setNamespaceAware(true);
+    SAXParser parser = factory.newSAXParser();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SAXCanonicalizer handler = new SAXCanonicalizer(getParams(paramName), out);
+    parser.setProperty("http://xml.org/sax/properties/lexical-handler",
+        handler);
+    FileInputStream fis = new FileInputStream(path + inFileName + ".xml");
+    try {
+      parser.parse(fis, handler);
+    } finally {
+      fis.close();
+    }
+    return Arrays.equals(out.toByteArray(), readBase(inFileName, paramName));
+  }
+
+  private static boolean processStAXTest(String inFileName, String paramName)
+      throws Exception {
+    String path = CanonicalizerTest.class.getProtectionDomain()
+        .getCodeSource().getLocation().getPath();
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    if (factory.isPropertySupported(REPORT_CDATA)) {
+      factory.setProperty(REPORT_CDATA, Boolean.TRUE);
+    }
+    FileInputStream fis = new FileInputStream(path + inFileName + ".xml");
+    try {
+      XMLStreamReader reader = factory.createXMLStreamReader(fis);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      StAXCanonicalizer.canonicalize(reader, getParams(paramName), out);
+      reader.close();
+      return Arrays.equals(out.toByteArray(), readBase(inFileName, paramName));
+    } finally {
+      fis.close();
+    }
+  }
+
+  private static Document parse(String inFileName) throws Exception {
+    String path = CanonicalizerTest.class.getProtectionDomain()
+        .getCodeSource().getLocation().getPath();
+    FileInputStream fis = new FileInputStream(path + inFileName + ".xml");
+    try {
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(fis);
+    } finally {
+      fis.close();
+    }
+  }
+
+  private static byte[] readBase(String inFileName, String paramName)
+      throws IOException {
+    String path = CanonicalizerTest.class.getProtectionDomain()
+        .getCodeSource().getLocation().getPath();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    FileInputStream fis = new FileInputStream(path + "out_" + inFileName + "_"
+        + paramName + ".xml");
+    try {
+      byte[] bytes = new byte[1024];
+      int cnt = 0;
+      while ((cnt = fis.read(bytes)) > -1)
+        baos.write(bytes, 0, cnt);
+    } finally {
+      fis.close();
+    }
+    return baos.toByteArray();
+  }
+
   private static boolean processTest(String testNumber, String inFileName,
       String paramName) {
     return processTest(testNumber, inFileName, paramName, null);
@@ -469,11 +1093,18 @@ public class CanonicalizerTest {
     fis.close();
     baos.flush();
     baos.close();
+    byte[] resultBytes = result.getBytes("UTF-8");
+    byte[] baseBytes = baos.toByteArray();
     boolean b = l <= 200;
-    for (int i = 0; b && i < result.length(); i++) {
-      if (result.getBytes("UTF-8")[i] != baos.toByteArray()[i]) {
-        System.out.println("Error pos: " + i + " res:"
-            + result.getBytes("UTF-8")[i] + " base:" + baos.toByteArray()[i]);
+    if (b && resultBytes.length != baseBytes.length) {
+      System.out.println("Error length: res:" + resultBytes.length + " base:"
+          + baseBytes.length);
+      b = false;
+    }
+    for (int i = 0; b && i < resultBytes.length; i++) {
+      if (resultBytes[i] != baseBytes[i]) {
+        System.out.println("Error pos: " + i + " res:" + resultBytes[i]
+            + " base:" + baseBytes[i]);
         b = false;
       }
     }